@@ -1,24 +1,26 @@
 package de.worldiety.autocd;
 
 import com.google.gson.Gson;
+import de.worldiety.autocd.docker.Docker;
+import de.worldiety.autocd.docker.Dockerfile;
 import de.worldiety.autocd.docker.DockerfileHandler;
 import de.worldiety.autocd.env.Environment;
 import de.worldiety.autocd.env.GithubEnvironment;
 import de.worldiety.autocd.env.GitlabEnvironment;
 import de.worldiety.autocd.k8s.K8sClient;
+import de.worldiety.autocd.k8s.KubeApi;
+import de.worldiety.autocd.k8s.ManifestRenderer;
 import de.worldiety.autocd.persistence.AutoCD;
 import de.worldiety.autocd.persistence.Volume;
+import de.worldiety.autocd.util.BuildTarget;
+import de.worldiety.autocd.util.DependencyExecutor;
 import de.worldiety.autocd.util.DockerconfigBuilder;
 import de.worldiety.autocd.util.FileType;
+import de.worldiety.autocd.util.Project;
 import de.worldiety.autocd.util.Util;
-import io.kubernetes.client.openapi.ApiClient;
 import io.kubernetes.client.openapi.Configuration;
-import io.kubernetes.client.openapi.apis.CoreV1Api;
-import io.kubernetes.client.custom.V1Patch;
-import io.kubernetes.client.util.ClientBuilder;
-import io.kubernetes.client.util.Config;
-import io.kubernetes.client.util.KubeConfig;
-import io.kubernetes.client.util.credentials.AccessTokenAuthentication;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -26,7 +28,15 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 public class Main {
@@ -58,109 +68,243 @@ public class Main {
 
     public static void main(String[] args) throws IOException {
         var environment = getEnv();
-        ApiClient client;
-        client = environment.getK8SConfig().map(it -> {
-            try {
-                return Config.fromConfig(it);
-            } catch (IOException e) {
-                e.printStackTrace();
+        String name = "autocd.json";
+        String buildType = environment.getBuildType().orElse("dev");
+
+        var servicesDirectory = environment.getServicesDirectory();
+        var projects = servicesDirectory.isPresent()
+                ? discoverServices(environment, Path.of(servicesDirectory.get()))
+                : List.of(new Project(getAutoCD(name, true), createFinder(environment, "."), null));
+
+        var planDirectory = environment.getPlanDirectory();
+        if (planDirectory.isPresent()) {
+            for (var project : projects) {
+                writePlan(environment, project, buildType, Path.of(planDirectory.get()));
             }
+            return;
+        }
 
-            return null;
-        }).orElseGet(() -> Config.fromToken(environment.getK8SUrl(),
-                environment.getK8SUserToken()).setSslCaCert(environment.getK8SCACert()));
+        KubeApi kubeApi = null;
+        try {
+            kubeApi = KubeApi.fromEnvironment(environment);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
 
-        if (client == null) {
+        if (kubeApi == null) {
             log.error("Could not initialize kubernetes client, check config file");
             System.exit(-1);
         }
 
-        Configuration.setDefaultApiClient(client);
+        Configuration.setDefaultApiClient(kubeApi.getClient());
 
-        String name = "autocd.json";
-        var autoCD = getAutoCD(name, true);
-        var oldAutoCD = getAutoCD("oldautocd.json", false);
-        // A new API Client is created. Docker Credentials will be obtained from the Digital Oceans cluster configuration file
-        var builder = environment.getK8SConfig().map(conf -> {
-            try {
-                return ClientBuilder.kubeconfig(KubeConfig.loadKubeConfig(conf));
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        var dockerCredentials = DockerconfigBuilder.getDockerConfig(
+                environment.getRegistryUrl(),
+                environment.getRegistryUser(),
+                environment.getRegistryPassword()
+        );
+        var k8sClient = new K8sClient(environment, kubeApi, buildType, dockerCredentials);
 
-            return null;
-        }).orElseGet(() -> {
-            try {
-                return ClientBuilder.standard()
-                        .setBasePath(environment.getK8SUrl())
-                        .setAuthentication(new AccessTokenAuthentication(environment.getK8SUserToken()));
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        for (var project : projects) {
+            removeStaleImages(environment, project, getOldAutoCD(project), k8sClient);
+        }
 
-            return null;
-        });
+        populateRegistryImagePaths(environment, projects, buildType);
+        for (var project : projects) {
+            var autoCD = project.getAutoCD();
+            populateServiceName(environment, project);
+            populateSubdomain(environment, autoCD, buildType, autoCD.getSubdomains());
+            populateContainerPort(autoCD, project.getFinder());
+        }
 
-        if (null == builder) {
-            log.error("could not build merge client");
-            System.exit(-1);
+        forEachConcurrently(environment, projects, project -> deployOrRemove(environment, project, k8sClient, buildType));
+        kubeApi.getMetrics().logSummary();
+    }
+
+    @NotNull
+    private static DockerfileHandler createFinder(Environment environment, String path) {
+        var finder = new DockerfileHandler(path);
+        finder.setCacheMounts(environment.shouldUseBuildKit());
+        finder.setAppCds(environment.shouldUseAppCds());
+        return finder;
+    }
+
+    /**
+     * Every directory within the services directory that has an autocd.json, a Dockerfile or a supported file type is
+     * a service. Each service is built from its own directory, pushed as its own image and deployed with its own
+     * configuration.
+     *
+     * @param servicesDirectory directory containing one directory per service
+     * @return the services, sorted by directory name
+     */
+    @NotNull
+    private static List<Project> discoverServices(Environment environment, Path servicesDirectory) throws IOException {
+        var services = new ArrayList<Project>();
+        List<Path> directories;
+        try (var list = Files.list(servicesDirectory)) {
+            directories = list.filter(Files::isDirectory).sorted().collect(Collectors.toList());
         }
 
-        ApiClient strategicMergePatchClient = builder
-                .setVerifyingSsl(true)
-                //.setOverridePatchFormat(V1Patch.PATCH_FORMAT_JSON_PATCH)
-                .build();
+        for (var directory : directories) {
+            var config = directory.resolve("autocd.json");
+            var finder = createFinder(environment, directory.toString());
+            if (Files.exists(config) || Files.exists(directory.resolve("Dockerfile")) || finder.getFileType() != FileType.OTHER) {
+                var imageName = BuildTarget.toImageName(directory.getFileName().toString());
+                services.add(new Project(getAutoCD(config.toString(), true), finder, imageName));
+            }
+        }
 
-        if (environment.getK8SConfig().isEmpty()) {
-            strategicMergePatchClient.setSslCaCert(environment.getK8SCACert());
+        if (services.isEmpty()) {
+            log.error("No services found in " + servicesDirectory);
+            throw new IllegalStateException("No services found in " + servicesDirectory);
         }
 
-        var dockerCredentials = DockerconfigBuilder.getDockerConfig(
-                environment.getRegistryUrl(),
-                environment.getRegistryUser(),
-                environment.getRegistryPassword()
-        );
-        String buildType = environment.getBuildType().orElse("dev");
+        log.info("Found services {}", services.stream().map(Project::getDisplayName).collect(Collectors.toList()));
+        return services;
+    }
 
-        DockerfileHandler finder = new DockerfileHandler(".");
+    /**
+     * @param project the project
+     * @return the configuration of the previous commit, null if there is none
+     */
+    @Nullable
+    private static AutoCD getOldAutoCD(Project project) throws FileNotFoundException {
+        if (project.getImageName() == null) {
+            return getAutoCD("oldautocd.json", false);
+        }
 
+        var oldConfig = project.getDirectory().resolve("oldautocd.json");
+        return Files.exists(oldConfig) ? getAutoCD(oldConfig.toString(), false) : null;
+    }
 
-        CoreV1Api patchApi = new CoreV1Api(strategicMergePatchClient);
-        CoreV1Api api = new CoreV1Api();
-        var k8sClient = new K8sClient(environment, api, finder, buildType, patchApi, dockerCredentials);
+    /**
+     * Removes the otherImages of the previous configuration from the cluster, if one of them is no longer part of the
+     * current configuration.
+     *
+     * @param project   project with the current configuration
+     * @param oldAutoCD configuration of the previous commit
+     * @param k8sClient
+     */
+    private static void removeStaleImages(Environment environment, Project project, @Nullable AutoCD oldAutoCD, K8sClient k8sClient) {
+        if (oldAutoCD == null) {
+            return;
+        }
 
-        if (oldAutoCD != null) {
-            var validImageNames = autoCD.getOtherImages().stream()
-                    .map(AutoCD::getRegistryImagePath)
-                    .collect(Collectors.toList());
+        var validImageNames = project.getAutoCD().getOtherImages().stream()
+                .map(AutoCD::getRegistryImagePath)
+                .collect(Collectors.toList());
 
-            var containsInvalidImages = oldAutoCD.getOtherImages()
-                    .stream()
-                    .map(AutoCD::getRegistryImagePath)
-                    .anyMatch(o -> !validImageNames.contains(o));
+        var containsInvalidImages = oldAutoCD.getOtherImages()
+                .stream()
+                .map(AutoCD::getRegistryImagePath)
+                .anyMatch(o -> !validImageNames.contains(o));
 
-            if (containsInvalidImages) {
-                oldAutoCD.getOtherImages().forEach(image -> {
-                    setServiceNameForOtherImages(environment, oldAutoCD, image);
-                    removeWithDependencies(environment, image, k8sClient);
-                });
-            }
+        if (containsInvalidImages) {
+            oldAutoCD.getOtherImages().forEach(image -> {
+                setServiceNameForOtherImages(environment, oldAutoCD, image);
+                removeWithDependencies(environment, image, k8sClient);
+            });
         }
+    }
 
-        populateRegistryImagePath(environment, autoCD, buildType, finder);
-        populateSubdomain(environment, autoCD, buildType, autoCD.getSubdomains());
-        populateContainerPort(autoCD, finder);
+    /**
+     * The services of a monorepo share the project name, so each of them gets a service name derived from its image,
+     * otherwise their kubernetes services would have the same name.
+     *
+     * @param project
+     */
+    private static void populateServiceName(Environment environment, Project project) {
+        var autoCD = project.getAutoCD();
+        if (project.getImageName() != null && autoCD.getServiceName() == null) {
+            // otherImages are named after the identifier of their parent, so the service uses its image name instead
+            autoCD.setServiceName(Util.hash(environment.getProjectName() + "/" + project.getImageName()).substring(0, 20));
+        }
+    }
 
+    private static void deployOrRemove(Environment environment, Project project, K8sClient k8sClient, String buildType) {
+        var autoCD = project.getAutoCD();
+        var prefix = project.getImageName() == null ? "" : project.getImageName() + ": ";
         if (!autoCD.isShouldHost()) {
-            log.info("Service is being removed from k8s.");
+            log.info(prefix + "Service is being removed from k8s.");
             removeWithDependencies(environment, autoCD, k8sClient);
 
-            log.info("Not deploying to k8s because autocd is set to no hosting");
+            log.info(prefix + "Not deploying to k8s because autocd is set to no hosting");
             return;
         }
 
         deployWithDependencies(environment, autoCD, k8sClient, buildType);
-        log.info("Deployed to k8s with subdomain: " + autoCD.getSubdomain());
+        log.info(prefix + "Deployed to k8s with subdomain: " + autoCD.getSubdomain());
+    }
+
+    /**
+     * Runs the action for all projects at the same time, bounded by the deploy parallelism. The services may share a
+     * namespace, the K8sClient only cleans up and unprotects claims owned by the deployed service and reserves ingress
+     * hosts across the run.
+     *
+     * @param projects
+     * @param action
+     */
+    private static void forEachConcurrently(Environment environment, List<Project> projects, Consumer<Project> action) {
+        if (projects.size() == 1) {
+            action.accept(projects.get(0));
+            return;
+        }
+
+        var executor = Executors.newFixedThreadPool(Math.max(1, Math.min(projects.size(), environment.getDeployParallelism())));
+        try {
+            CompletableFuture.allOf(projects.stream()
+                    .map(project -> CompletableFuture.runAsync(() -> action.accept(project), executor))
+                    .toArray(CompletableFuture[]::new)).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+
+            throw e;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Renders the manifests of the configuration and all of its dependencies and writes them to the given directory.
+     * Neither the registry nor the cluster are contacted, the image is referenced by the tag it would be pushed with.
+     *
+     * @param project
+     * @param buildType
+     * @param directory
+     */
+    private static void writePlan(Environment environment, Project project, String buildType, Path directory) throws IOException {
+        var autoCD = project.getAutoCD();
+        if (!autoCD.isShouldHost()) {
+            log.info("Not writing a plan because autocd is set to no hosting");
+            return;
+        }
+
+        var start = System.currentTimeMillis();
+        if (needsBuild(autoCD)) {
+            autoCD.setRegistryImagePath(Docker.getTag(environment, project.getImageName(), buildType));
+        }
+
+        var targets = new ArrayList<BuildTarget>();
+        collectBuildTargets(project, autoCD, targets);
+        targets.forEach(target -> target.getAutoCD().setRegistryImagePath(Docker.getTag(environment, target.getImageName(), buildType)));
+
+        populateServiceName(environment, project);
+        populateSubdomain(environment, autoCD, buildType, autoCD.getSubdomains());
+        populateContainerPort(autoCD, project.getFinder());
+        prepareDependencies(environment, autoCD, buildType);
+
+        writeManifests(new ManifestRenderer(environment, buildType), autoCD, directory);
+        log.info("Wrote plan to " + directory + " in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    private static void writeManifests(ManifestRenderer renderer, AutoCD autoCD, Path directory) throws IOException {
+        renderer.write(renderer.render(autoCD), directory);
+
+        for (var config : autoCD.getOtherImages()) {
+            writeManifests(renderer, config, directory);
+        }
     }
 
     /**
@@ -177,27 +321,54 @@ public class Main {
     }
 
     /**
-     * If there is no image on the registry, creates new Dockerfile, builds an images and pushes it to the registry
-     * and sets its path in the autoCD object.
+     * If there is no image on the registry, generates a Dockerfile unless the project has one, builds an images and
+     * pushes it to the registry and sets its path in the autoCD object. The same is done for all otherImages that have a dockerImagePath but no
+     * registryImagePath, all images of all projects are built concurrently.
      *
-     * @param autoCD
+     * @param projects
      * @param buildType
-     * @param finder
      */
-    private static void populateRegistryImagePath(Environment environment, AutoCD autoCD, String buildType, DockerfileHandler finder) {
-        if (autoCD.getRegistryImagePath() == null || autoCD.getRegistryImagePath().isEmpty()) {
-            var dockerFile = new File("Dockerfile");
-
-            if (!dockerFile.exists()) {
-                finder.findDockerConfig().ifPresent(config -> {
-                    Util.pushDockerAndSetPath(environment, config, autoCD, buildType);
-                });
-            } else {
-                Util.pushDockerAndSetPath(environment, dockerFile.getAbsoluteFile(), autoCD, buildType);
+    private static void populateRegistryImagePaths(Environment environment, List<Project> projects, String buildType) {
+        var targets = new ArrayList<BuildTarget>();
+        for (var project : projects) {
+            var autoCD = project.getAutoCD();
+            if (needsBuild(autoCD)) {
+                var dockerFile = project.getDirectory().resolve("Dockerfile").toFile();
+
+                if (!dockerFile.exists()) {
+                    project.getFinder().findDockerConfig().ifPresent(config -> targets.add(new BuildTarget(autoCD, config, project.getImageName())));
+                } else {
+                    targets.add(new BuildTarget(autoCD, Dockerfile.of(dockerFile), project.getImageName()));
+                }
             }
+
+            collectBuildTargets(project, autoCD, targets);
+        }
+
+        if (targets.isEmpty()) {
+            return;
+        }
+
+        try (var docker = new Docker(environment)) {
+            Util.pushDockerAndSetPaths(environment, docker, targets, buildType);
+            docker.logSummary();
         }
     }
 
+    private static boolean needsBuild(AutoCD autoCD) {
+        return autoCD.getRegistryImagePath() == null || autoCD.getRegistryImagePath().isEmpty();
+    }
+
+    private static void collectBuildTargets(Project project, AutoCD autoCD, List<BuildTarget> targets) {
+        autoCD.getOtherImages().forEach(config -> {
+            if (config.getDockerImagePath() != null && needsBuild(config)) {
+                targets.add(BuildTarget.fromDockerImagePath(config, project.getDirectory(), project.getImageName()));
+            }
+
+            collectBuildTargets(project, config, targets);
+        });
+    }
+
     /**
      * If the autoCD object can not be found, this method creates a new autoCD object and returns it.
      * If there is one, the autoCD object will get its parameters from an exiting configuration file.
@@ -240,23 +411,25 @@ public class Main {
 
     /**
      * If a service should be removed, this method checks for other services, depending on the one which will be removed from the
-     * cluster. Dependencies can be found in the autoCD class variable called otherImages. The method proceeds recursively
-     * and removes all depending services.
+     * cluster. Dependencies can be found in the autoCD class variable called otherImages. A service is removed before the
+     * services it depends on, independent services are removed concurrently.
      *
      * @param autoCD
      * @param k8sClient
      */
     private static void removeWithDependencies(Environment environment, AutoCD autoCD, K8sClient k8sClient) {
-        if (!autoCD.getOtherImages().isEmpty()) {
-            autoCD.getOtherImages().forEach(config -> {
-                setServiceNameForOtherImages(environment, autoCD, config);
-                if (!config.getOtherImages().isEmpty()) {
-                    removeWithDependencies(environment, config, k8sClient);
-                }
-            });
+        populateServiceNames(environment, autoCD);
+
+        try (var executor = new DependencyExecutor(environment.getDeployParallelism())) {
+            executor.runDependentsFirst(autoCD, k8sClient::removeDeploymentFromK8s);
         }
+    }
 
-        k8sClient.removeDeploymentFromK8s(autoCD);
+    private static void populateServiceNames(Environment environment, AutoCD autoCD) {
+        autoCD.getOtherImages().forEach(config -> {
+            setServiceNameForOtherImages(environment, autoCD, config);
+            populateServiceNames(environment, config);
+        });
     }
 
     /**
@@ -274,27 +447,31 @@ public class Main {
     }
 
     /**
-     * If there are dependencies found within the main service, those services will be deployed as well.
+     * If there are dependencies found within the main service, those services will be deployed as well. Dependencies are
+     * deployed before the services using them, independent services are deployed concurrently.
      *
      * @param autoCD
      * @param k8sClient
      * @param buildType
      */
     private static void deployWithDependencies(Environment environment, AutoCD autoCD, K8sClient k8sClient, String buildType) {
-        validateConfig(autoCD);
-        if (!autoCD.getOtherImages().isEmpty()) {
-            autoCD.getOtherImages().forEach(config -> {
-                populateSubdomain(environment, config, buildType, autoCD.getSubdomains());
+        prepareDependencies(environment, autoCD, buildType);
 
-                if (!config.getOtherImages().isEmpty()) {
-                    deployWithDependencies(environment, config, k8sClient, buildType);
-                }
-                setServiceNameForOtherImages(environment, autoCD, config);
-                k8sClient.deployToK8s(config);
-            });
+        try (var executor = new DependencyExecutor(environment.getDeployParallelism())) {
+            executor.runDependenciesFirst(autoCD, k8sClient::deployToK8s);
         }
+    }
 
-        k8sClient.deployToK8s(autoCD);
+    private static void prepareDependencies(Environment environment, AutoCD autoCD, String buildType) {
+        validateConfig(autoCD);
+        autoCD.getOtherImages().forEach(config -> {
+            populateSubdomain(environment, config, buildType, autoCD.getSubdomains());
+
+            if (!config.getOtherImages().isEmpty()) {
+                prepareDependencies(environment, config, buildType);
+            }
+            setServiceNameForOtherImages(environment, autoCD, config);
+        });
     }
 
     private static void validateConfig(AutoCD autoCD) {
@@ -0,0 +1,323 @@
+package de.worldiety.autocd.docker;
+
+import com.github.dockerjava.core.GoLangFileMatch;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarConstants;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * The files of a directory that are sent to the docker daemon when building an image, i.e. all files that are not
+ * excluded by the .dockerignore of the directory.
+ */
+class BuildContext {
+    static final String DOCKER_IGNORE = ".dockerignore";
+    //Reused per scan thread, creating them per file costs more than hashing the typical small source file
+    private static final ThreadLocal<MessageDigest> FILE_DIGEST = ThreadLocal.withInitial(BuildContext::newDigest);
+    private static final ThreadLocal<byte[]> BUFFER = ThreadLocal.withInitial(() -> new byte[8192]);
+    private final Path directory;
+    private final List<String> ignorePatterns;
+
+    BuildContext(@NotNull Path directory, @NotNull List<String> ignorePatterns) {
+        this.directory = directory.toAbsolutePath().normalize();
+        this.ignorePatterns = List.copyOf(ignorePatterns);
+    }
+
+    /**
+     * @param directory the root of the build context
+     * @return the context with the ignore patterns of the .dockerignore in the directory, if there is one
+     * @throws IOException if the .dockerignore could not be read
+     */
+    @NotNull
+    static BuildContext of(@NotNull Path directory) throws IOException {
+        var dockerIgnore = directory.resolve(DOCKER_IGNORE);
+        if (!Files.exists(dockerIgnore)) {
+            return new BuildContext(directory, List.of());
+        }
+
+        return new BuildContext(directory, parseIgnorePatterns(Files.readAllLines(dockerIgnore)));
+    }
+
+    /**
+     * @param lines lines of a .dockerignore
+     * @return the patterns without comments and empty lines
+     */
+    @NotNull
+    static List<String> parseIgnorePatterns(@NotNull List<String> lines) {
+        return lines.stream()
+                .map(String::trim)
+                .filter(it -> !it.isEmpty() && !it.startsWith("#"))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Matches the file like docker does, the last matching pattern decides and patterns starting with "!" re-include
+     * the file.
+     *
+     * @param file a file within the context directory
+     * @return true if the file is not part of the build context
+     */
+    boolean isIgnored(@NotNull Path file) {
+        var path = directory.relativize(file.toAbsolutePath().normalize()).toString();
+        var ignored = false;
+        for (var pattern : ignorePatterns) {
+            var exception = pattern.startsWith("!");
+            if (GoLangFileMatch.match(exception ? pattern.substring(1) : pattern, path)) {
+                ignored = !exception;
+            }
+        }
+
+        return ignored;
+    }
+
+    /**
+     * @return the summed size of all files that are part of the build context
+     * @throws IOException if the directory could not be read
+     */
+    long getSize() throws IOException {
+        return summarize(false).getSize();
+    }
+
+    /**
+     * @return all files that are part of the build context, sorted by path
+     * @throws IOException if the directory could not be read
+     */
+    @NotNull
+    List<Path> getFiles() throws IOException {
+        return summarize(true).getFiles();
+    }
+
+    /**
+     * Scans the files that are part of the build context. Ignored directories are not entered, unless an exception
+     * pattern could re-include something inside of them.
+     *
+     * @param keepFiles if true, the summary contains the files, directories and symbolic links
+     * @return the summary of the files
+     * @throws IOException if the directory could not be read
+     */
+    @NotNull
+    ScanSummary summarize(boolean keepFiles) throws IOException {
+        var canPrune = ignorePatterns.stream().noneMatch(it -> it.startsWith("!"));
+        return new ProjectScanner(directory, dir -> canPrune && isIgnored(dir), file -> !isIgnored(file), Integer.MAX_VALUE)
+                .summarize(keepFiles);
+    }
+
+    /**
+     * Hashes the entries of the context in a stable order, together with the Dockerfile and the given build arguments:
+     * the path, content and mode of every file, every directory and the target of every symbolic link, i.e. everything
+     * that ends up in the tar sent to the daemon. Two contexts with the same hash result in the same image.
+     *
+     * @param dockerfile content of the Dockerfile used for the build
+     * @param buildArgs  values of the build arguments
+     * @return the hex encoded SHA-256 hash
+     * @throws IOException if a file could not be read
+     */
+    @NotNull
+    String hash(@NotNull byte[] dockerfile, @NotNull String... buildArgs) throws IOException {
+        var digest = newDigest();
+
+        for (var arg : buildArgs) {
+            update(digest, arg);
+        }
+
+        digest.update(dockerfile);
+        digest.update((byte) 0);
+
+        // the files are hashed in parallel, the hashes are combined in the order of the paths
+        var entries = getEntries();
+        var files = entries.stream()
+                .filter(it -> it.getType() == EntryType.FILE)
+                .map(ContextEntry::getPath)
+                .collect(Collectors.toList());
+        List<FileHash> fileHashes;
+        try {
+            fileHashes = ProjectScanner.map(files, this::hashFile);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        var fileIndex = 0;
+        for (var entry : entries) {
+            var name = getEntryName(entry.getPath());
+            switch (entry.getType()) {
+                case DIRECTORY:
+                    update(digest, "directory:" + name);
+                    break;
+                case SYMBOLIC_LINK:
+                    update(digest, "link:" + name + ":" + Files.readSymbolicLink(entry.getPath()));
+                    break;
+                default:
+                    var fileHash = fileHashes.get(fileIndex++);
+                    update(digest, "file:" + name + ":" + fileHash.size + ":" + (fileHash.executable ? "x" : "-"));
+                    digest.update(fileHash.hash);
+            }
+        }
+
+        var hex = new StringBuilder();
+        for (var b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+
+        return hex.toString();
+    }
+
+    /**
+     * @return the files, directories and symbolic links that are part of the build context, sorted by path, so a
+     * directory comes before its content
+     * @throws IOException if the directory could not be read
+     */
+    @NotNull
+    List<ContextEntry> getEntries() throws IOException {
+        var summary = summarize(true);
+        var entries = new ArrayList<ContextEntry>();
+        summary.getFiles().forEach(it -> entries.add(new ContextEntry(it, EntryType.FILE)));
+        summary.getDirectories().forEach(it -> entries.add(new ContextEntry(it, EntryType.DIRECTORY)));
+        summary.getSymbolicLinks().forEach(it -> entries.add(new ContextEntry(it, EntryType.SYMBOLIC_LINK)));
+        entries.sort(Comparator.comparing(ContextEntry::getPath));
+        return entries;
+    }
+
+    /**
+     * Writes the context as an uncompressed tar, like the docker CLI sends it to the daemon, with the Dockerfile added
+     * as an entry of its own. A file of the context with the same name is replaced by it. Directories are written as
+     * entries of their own, so empty ones like the static folder of the prod images are kept, symbolic links are
+     * written as links.
+     *
+     * @param out             receives the tar, it is not closed
+     * @param dockerfileEntry path of the Dockerfile within the tar
+     * @param dockerfile      content of the Dockerfile
+     * @throws IOException if a file could not be read or the tar could not be written
+     */
+    void writeTar(@NotNull OutputStream out, @NotNull String dockerfileEntry, @NotNull byte[] dockerfile) throws IOException {
+        var tar = new TarArchiveOutputStream(out);
+        tar.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+        tar.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+
+        for (var contextEntry : getEntries()) {
+            var path = contextEntry.getPath();
+            var name = getEntryName(path);
+            if (name.equals(dockerfileEntry)) {
+                continue;
+            }
+
+            switch (contextEntry.getType()) {
+                case DIRECTORY:
+                    tar.putArchiveEntry(new TarArchiveEntry(path.toFile(), name));
+                    tar.closeArchiveEntry();
+                    break;
+                case SYMBOLIC_LINK:
+                    var link = new TarArchiveEntry(name, TarConstants.LF_SYMLINK);
+                    link.setLinkName(Files.readSymbolicLink(path).toString());
+                    link.setModTime(Files.getLastModifiedTime(path, LinkOption.NOFOLLOW_LINKS).toMillis());
+                    tar.putArchiveEntry(link);
+                    tar.closeArchiveEntry();
+                    break;
+                default:
+                    var entry = new TarArchiveEntry(path.toFile(), name);
+                    if (Files.isExecutable(path)) {
+                        // build.sh and gradlew are run inside of the image
+                        entry.setMode(entry.getMode() | 0755);
+                    }
+
+                    tar.putArchiveEntry(entry);
+                    Files.copy(path, tar);
+                    tar.closeArchiveEntry();
+            }
+        }
+
+        var entry = new TarArchiveEntry(dockerfileEntry);
+        entry.setSize(dockerfile.length);
+        tar.putArchiveEntry(entry);
+        tar.write(dockerfile);
+        tar.closeArchiveEntry();
+        tar.finish();
+    }
+
+    @NotNull
+    private String getEntryName(@NotNull Path path) {
+        return directory.relativize(path).toString().replace(File.separatorChar, '/');
+    }
+
+    @NotNull
+    private FileHash hashFile(@NotNull Path file) {
+        var digest = FILE_DIGEST.get();
+        var buffer = BUFFER.get();
+        var size = 0L;
+        try (InputStream in = Files.newInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+                size += read;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        return new FileHash(size, Files.isExecutable(file), digest.digest());
+    }
+
+    @NotNull
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void update(@NotNull MessageDigest digest, @NotNull String value) {
+        digest.update(value.getBytes(StandardCharsets.UTF_8));
+        // separates the values, so moving content between them changes the hash
+        digest.update((byte) 0);
+    }
+
+    enum EntryType {
+        FILE, DIRECTORY, SYMBOLIC_LINK
+    }
+
+    static class ContextEntry {
+        private final Path path;
+        private final EntryType type;
+
+        ContextEntry(Path path, EntryType type) {
+            this.path = path;
+            this.type = type;
+        }
+
+        Path getPath() {
+            return path;
+        }
+
+        EntryType getType() {
+            return type;
+        }
+    }
+
+    private static class FileHash {
+        private final long size;
+        private final boolean executable;
+        private final byte[] hash;
+
+        FileHash(long size, boolean executable, byte[] hash) {
+            this.size = size;
+            this.executable = executable;
+            this.hash = hash;
+        }
+    }
+}
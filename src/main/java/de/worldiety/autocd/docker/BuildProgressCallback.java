@@ -0,0 +1,99 @@
+package de.worldiety.autocd.docker;
+
+import com.github.dockerjava.api.model.BuildResponseItem;
+import com.github.dockerjava.core.command.BuildImageResultCallback;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.regex.Pattern;
+
+/**
+ * Logs the steps of a build instead of every line of output. The remaining output is only logged at debug level, the
+ * last lines are kept and logged if the build fails.
+ */
+class BuildProgressCallback extends BuildImageResultCallback {
+    private static final Logger log = LoggerFactory.getLogger(BuildProgressCallback.class);
+    private static final Pattern STEP = Pattern.compile("^Step (\\d+)/(\\d+) : .*", Pattern.DOTALL);
+    //Plain progress output of BuildKit, e.g. "#7 [builder 3/5] RUN npm install"
+    private static final Pattern BUILDKIT_STEP = Pattern.compile("^#\\d+ \\[[^\\]]*?(\\d+)/(\\d+)] .*");
+    //Printed by the training run of the AppCDS template
+    private static final Pattern STARTUP = Pattern.compile("autocd startup: ([0-9.]+)s without archive, ([0-9.]+)s with archive");
+    private static final int TAIL_LINES = 50;
+    private final ImageStats stats;
+    private final Deque<String> tail = new ArrayDeque<>();
+    private final long start = System.currentTimeMillis();
+
+    BuildProgressCallback(ImageStats stats) {
+        this.stats = stats;
+    }
+
+    @Override
+    public void onNext(@NotNull BuildResponseItem item) {
+        var stream = item.getStream();
+        if (stream != null && !stream.isBlank() && !stream.equals(".")) {
+            onLine(stream.strip());
+        }
+
+        if (item.isErrorIndicated()) {
+            logTail();
+        }
+
+        super.onNext(item);
+    }
+
+    /**
+     * Handles one line of build output, either of the docker API or of a BuildKit build through the docker CLI
+     *
+     * @param line the line without line break
+     */
+    void onLine(@NotNull String line) {
+        var step = STEP.matcher(line);
+        var buildKitStep = BUILDKIT_STEP.matcher(line);
+        if (step.matches() || buildKitStep.matches()) {
+            stats.setSteps(Integer.parseInt(step.matches() ? step.group(2) : buildKitStep.group(2)));
+            log.info("{} {}", stats.getTag(), line);
+        } else {
+            var startup = STARTUP.matcher(line);
+            if (startup.find()) {
+                stats.setStartupMillis(toMillis(startup.group(1)), toMillis(startup.group(2)));
+                log.info("{} starts in {} ms with the class data sharing archive, {} ms without", stats.getTag(),
+                        stats.getStartupMillisWithArchive(), stats.getStartupMillis());
+            }
+
+            if (line.contains("Using cache") || line.endsWith(" CACHED")) {
+                stats.incrementCachedSteps();
+            }
+
+            log.debug(line);
+        }
+
+        synchronized (tail) {
+            tail.addLast(line);
+            if (tail.size() > TAIL_LINES) {
+                tail.removeFirst();
+            }
+        }
+    }
+
+    @Override
+    public void onComplete() {
+        stats.setBuildMillis(System.currentTimeMillis() - start);
+        super.onComplete();
+    }
+
+    private long toMillis(@NotNull String seconds) {
+        return Math.round(Double.parseDouble(seconds) * 1000);
+    }
+
+    /**
+     * Logs the last lines of output, so the reason of a failed build is visible without debug logging
+     */
+    void logTail() {
+        synchronized (tail) {
+            log.error("Build of {} failed, last {} lines of output:\n{}", stats.getTag(), tail.size(), String.join("\n", tail));
+        }
+    }
+}
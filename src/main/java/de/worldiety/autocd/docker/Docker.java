@@ -1,30 +1,62 @@
 package de.worldiety.autocd.docker;
 
 import com.github.dockerjava.api.DockerClient;
-import com.github.dockerjava.api.model.BuildResponseItem;
-import com.github.dockerjava.api.model.PushResponseItem;
+import com.github.dockerjava.api.exception.DockerClientException;
+import com.github.dockerjava.api.exception.DockerException;
+import com.github.dockerjava.api.exception.NotFoundException;
 import com.github.dockerjava.core.DefaultDockerClientConfig;
 import com.github.dockerjava.core.DockerClientBuilder;
-import com.github.dockerjava.core.command.BuildImageResultCallback;
+import com.github.dockerjava.core.command.PullImageResultCallback;
 import com.github.dockerjava.core.command.PushImageResultCallback;
+import com.github.dockerjava.jaxrs.JerseyDockerCmdExecFactory;
 import de.worldiety.autocd.env.Environment;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
 
-public class Docker {
+/**
+ * Builds and pushes images. One instance is meant to be shared by all images of a run, its connections to the docker
+ * daemon are pooled and kept alive between calls.
+ */
+public class Docker implements Closeable {
     private static final Logger log = LoggerFactory.getLogger(Docker.class);
+    private static final int CONNECT_TIMEOUT_MS = 10000;
+    //Every concurrent build holds a connection for the build output, pushes and inspects need another one
+    private static final int CONNECTIONS_PER_BUILD = 2;
+    //Length of the content hash in a tag, long enough to make collisions between builds of a project irrelevant
+    private static final int CONTENT_HASH_LENGTH = 16;
+    //The generated Dockerfile takes the place a Dockerfile of the project would have in the build context
+    private static final String GENERATED_DOCKERFILE = "Dockerfile";
+    private static final int TAR_PIPE_SIZE = 1024 * 1024;
     private final DockerClient client;
     private final Environment environment;
+    private final RegistryClient registryClient;
+    private final Queue<ImageStats> stats = new ConcurrentLinkedQueue<>();
 
     public Docker(Environment environment) {
         this.environment = environment;
+        this.registryClient = new RegistryClient(environment);
         var reg = environment.getRegistryUrl();
         DefaultDockerClientConfig config;
-        log.info(environment.getRegistryPassword());
         if (reg != null) {
             config = DefaultDockerClientConfig.createDefaultConfigBuilder()
                     .withRegistryUrl(reg)
@@ -34,10 +66,33 @@ public class Docker {
         } else {
             config = DefaultDockerClientConfig.createDefaultConfigBuilder().build();
         }
-        this.client = DockerClientBuilder.getInstance(config).build();
+        var connections = Math.max(1, environment.getBuildParallelism()) * CONNECTIONS_PER_BUILD;
+        // no read timeout, build and push responses are streamed for as long as the build takes
+        var execFactory = new JerseyDockerCmdExecFactory()
+                .withConnectTimeout(CONNECT_TIMEOUT_MS)
+                .withMaxTotalConnections(connections)
+                .withMaxPerRouteConnections(connections);
+        this.client = DockerClientBuilder.getInstance(config)
+                .withDockerCmdExecFactory(execFactory)
+                .build();
     }
 
-    public String buildAndPushImageFromFile(File configFile, String buildType) {
+    /**
+     * @param environment the CI environment
+     * @param buildType   the build type
+     * @return the tag the image of the project is pushed with
+     */
+    public static String getTag(Environment environment, String buildType) {
+        return getTag(environment, null, buildType);
+    }
+
+    /**
+     * @param environment the CI environment
+     * @param imageName   name of an additional image of the project, null for the main image
+     * @param buildType   the build type
+     * @return the tag the image is pushed with
+     */
+    public static String getTag(Environment environment, @Nullable String imageName, String buildType) {
         var reg = environment.getRegistryUrl();
         var projectName = environment.getProjectName();
         var nameSpace = environment.getOrgName();
@@ -46,47 +101,315 @@ public class Docker {
         projectName = projectName == null ? "default" : projectName;
         nameSpace = nameSpace == null ? "default" : nameSpace;
 
-        var tag = reg + "/" + nameSpace + "/" + projectName + ":" + buildType;
+        var repository = reg + "/" + nameSpace + "/" + projectName;
+        if (imageName != null) {
+            repository += "/" + imageName;
+        }
 
-        log.info("creating image with tag " + tag);
+        return repository + ":" + buildType;
+    }
 
-        BuildImageResultCallback callback = new BuildImageResultCallback() {
-            @Override
-            public void onNext(@NotNull BuildResponseItem item) {
-                if (item.getStream() != null && !item.getStream().equals(".")) {
-                    log.info(item.getStream());
-                }
-                super.onNext(item);
+    public String buildAndPushImage(Dockerfile dockerfile, String buildType) {
+        return buildAndPushImage(dockerfile, null, buildType);
+    }
+
+    /**
+     * @param dockerfile the Dockerfile and its build context
+     * @param imageName  name of an additional image of the project, null for the main image
+     * @param buildType  the build type
+     * @return the tag of the pushed image
+     */
+    public String buildAndPushImage(Dockerfile dockerfile, @Nullable String imageName, String buildType) {
+        var tag = getTag(environment, imageName, buildType);
+        var tags = new LinkedHashSet<String>();
+        tags.add(tag);
+
+        if (environment.shouldUseContentTags()) {
+            var contentTag = getContentTag(dockerfile, tag, buildType);
+            if (registryClient.exists(contentTag)) {
+                log.info("Image " + contentTag + " already exists, skipping build");
+                return contentTag;
             }
-        };
 
-        var staticDir = new File("static/");
+            // the build type tag is kept up to date as well, it is used as cache for the next build
+            tags.add(contentTag);
+            tag = contentTag;
+        }
+
+        log.info("creating image with tags " + tags);
+
+        var imageStats = new ImageStats(tag);
+        stats.add(imageStats);
+        var callback = new BuildProgressCallback(imageStats);
+
+        var staticDir = dockerfile.getContextDirectory().resolve("static").toFile();
         if (!staticDir.exists()) {
             if (!staticDir.mkdir()) {
                 log.error("No write permissions");
             }
         }
 
-        client.buildImageCmd(configFile)
-                .withTags(Set.of(tag))
-                .withBuildArg("buildType", buildType)
-                .exec(callback)
-                .awaitImageId();
+        var buildArgs = new LinkedHashMap<String, String>();
+        buildArgs.put("buildType", buildType);
+        var cacheFrom = new LinkedHashSet<String>();
+
+        if (environment.shouldUseRegistryCache()) {
+            // BuildKit only reuses layers of a pulled image if it was built with inline cache metadata, so every image
+            // gets it, including the first one that has no previous image to pull
+            buildArgs.put("BUILDKIT_INLINE_CACHE", "1");
+
+            var cacheTag = getTag(environment, imageName, buildType);
+            if (pullPreviousImage(cacheTag)) {
+                cacheFrom.add(cacheTag);
+            }
+        }
+
+        if (environment.shouldUseBuildKit()) {
+            buildWithBuildKit(dockerfile, tags, buildArgs, cacheFrom, callback);
+        } else if (dockerfile.isGenerated()) {
+            buildFromTar(dockerfile, tags, buildArgs, cacheFrom, callback);
+        } else {
+            var buildCmd = client.buildImageCmd(dockerfile.getFile()).withTags(tags);
+            buildArgs.forEach(buildCmd::withBuildArg);
+            if (!cacheFrom.isEmpty()) {
+                buildCmd.withCacheFrom(cacheFrom);
+            }
+
+            buildCmd.exec(callback).awaitImageId();
+        }
+
+        var size = client.inspectImageCmd(tag).exec().getSize();
+        imageStats.setImageSize(size == null ? 0 : size);
 
         try {
-            client.pushImageCmd(tag).exec(new PushImageResultCallback() {
-                @Override
-                public void onNext(PushResponseItem item) {
-                    if (item.getStream() != null && !item.getStream().equals(".")) {
-                        log.info(item.getStream());
-                    }
-                    super.onNext(item);
+            client.pushImageCmd(tag).exec(new PushProgressCallback(imageStats)).awaitCompletion();
+
+            // all layers exist after the first push, the other tags only add a manifest
+            for (var pushTag : tags) {
+                if (!pushTag.equals(tag)) {
+                    client.pushImageCmd(pushTag).exec(new PushImageResultCallback()).awaitCompletion();
                 }
-            }).awaitCompletion();
+            }
         } catch (InterruptedException e) {
             log.error("pushing image failed", e);
         }
 
+        log.info(imageStats.toString());
         return tag;
     }
+
+    /**
+     * @return the numbers of every image built by this client
+     */
+    public List<ImageStats> getStats() {
+        return List.copyOf(stats);
+    }
+
+    /**
+     * Logs the numbers of every image built by this client and the bytes pushed in total
+     */
+    public void logSummary() {
+        stats.forEach(it -> log.info(it.toString()));
+        log.info("Pushed {} for {} images, {} in total", ImageStats.formatBytes(stats.stream().mapToLong(ImageStats::getPushedBytes).sum()),
+                stats.size(), ImageStats.formatBytes(stats.stream().mapToLong(ImageStats::getImageSize).sum()));
+    }
+
+    @Override
+    public void close() {
+        try {
+            client.close();
+        } catch (IOException e) {
+            log.warn("Could not close docker client", e);
+        }
+    }
+
+    /**
+     * Derives a tag from the content of the build context (respecting the .dockerignore), the Dockerfile and the build
+     * type. Building the same content always results in the same tag, so an existing image can be reused.
+     *
+     * @param dockerfile the Dockerfile and its build context
+     * @param tag        the build type tag of the project
+     * @param buildType  the build type
+     * @return the build type tag with the content hash appended
+     */
+    @NotNull
+    private String getContentTag(@NotNull Dockerfile dockerfile, @NotNull String tag, String buildType) {
+        var start = System.currentTimeMillis();
+        try {
+            var context = BuildContext.of(dockerfile.getContextDirectory());
+            var hash = context.hash(dockerfile.getContent(), buildType);
+            log.info("Hashed build context in " + (System.currentTimeMillis() - start) + " ms");
+            return tag + "-" + hash.substring(0, CONTENT_HASH_LENGTH);
+        } catch (IOException e) {
+            log.error("Could not hash build context", e);
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Builds the image through the docker CLI with BuildKit enabled, which is needed for the cache mounts of the
+     * generated Dockerfiles. docker-java can neither request a BuildKit build nor parse its progress messages. The CLI
+     * talks to the same daemon, DOCKER_HOST and the other docker variables are inherited. A generated Dockerfile is
+     * passed on stdin.
+     *
+     * @param dockerfile the Dockerfile and its build context
+     * @param tags       tags of the image
+     * @param buildArgs  build arguments
+     * @param cacheFrom  images to use as cache
+     * @param callback   receives the output of the build
+     */
+    private void buildWithBuildKit(@NotNull Dockerfile dockerfile, @NotNull Set<String> tags, @NotNull Map<String, String> buildArgs,
+                                   @NotNull Set<String> cacheFrom, @NotNull BuildProgressCallback callback) {
+        var file = dockerfile.getFile();
+        var command = new ArrayList<>(List.of("docker", "build", "--progress=plain", "-f", file == null ? "-" : file.getPath()));
+        tags.forEach(it -> command.addAll(List.of("-t", it)));
+        buildArgs.forEach((key, value) -> command.addAll(List.of("--build-arg", key + "=" + value)));
+        cacheFrom.forEach(it -> command.addAll(List.of("--cache-from", it)));
+        command.add(dockerfile.getContextDirectory().toString());
+
+        var processBuilder = new ProcessBuilder(command).redirectErrorStream(true);
+        processBuilder.environment().put("DOCKER_BUILDKIT", "1");
+
+        try {
+            var process = processBuilder.start();
+            try (var stdin = process.getOutputStream()) {
+                if (file == null) {
+                    stdin.write(dockerfile.getContent());
+                }
+            }
+
+            try (var reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                reader.lines()
+                        .filter(it -> !it.isBlank())
+                        .forEach(callback::onLine);
+            }
+
+            if (process.waitFor() != 0) {
+                callback.logTail();
+                throw new IllegalStateException("BuildKit build of " + tags + " failed with exit code " + process.exitValue());
+            }
+        } catch (IOException e) {
+            log.error("Could not run docker build, the docker CLI is needed for BuildKit builds", e);
+            throw new IllegalStateException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+
+        callback.onComplete();
+    }
+
+    /**
+     * Builds the image from a generated Dockerfile, which only exists in memory. The build context is packed into a tar
+     * together with the Dockerfile and streamed into the build request while it is written, so neither the Dockerfile
+     * nor the tar is written to disk.
+     *
+     * @param dockerfile the generated Dockerfile and its build context
+     * @param tags       tags of the image
+     * @param buildArgs  build arguments
+     * @param cacheFrom  images to use as cache
+     * @param callback   receives the output of the build
+     */
+    private void buildFromTar(@NotNull Dockerfile dockerfile, @NotNull Set<String> tags, @NotNull Map<String, String> buildArgs,
+                              @NotNull Set<String> cacheFrom, @NotNull BuildProgressCallback callback) {
+        var failure = new AtomicReference<IOException>();
+        var in = new PipedInputStream(TAR_PIPE_SIZE);
+        Thread writer = null;
+        try {
+            var out = new PipedOutputStream(in);
+            writer = new Thread(() -> {
+                try (out) {
+                    BuildContext.of(dockerfile.getContextDirectory()).writeTar(out, GENERATED_DOCKERFILE, dockerfile.getContent());
+                } catch (IOException e) {
+                    // the daemon gets a truncated tar and fails the build, unless the build failed first
+                    failure.set(e);
+                }
+            }, "tar " + tags.iterator().next());
+            writer.setDaemon(true);
+            writer.start();
+
+            var buildCmd = client.buildImageCmd(in)
+                    .withDockerfilePath(GENERATED_DOCKERFILE)
+                    .withTags(tags);
+            buildArgs.forEach(buildCmd::withBuildArg);
+            if (!cacheFrom.isEmpty()) {
+                buildCmd.withCacheFrom(cacheFrom);
+            }
+
+            buildCmd.exec(callback).awaitImageId();
+        } catch (IOException e) {
+            log.error("Could not stream the build context", e);
+            throw new IllegalStateException(e);
+        } finally {
+            // the only place the pipe is closed, it also unblocks the writer if the build stopped reading the tar
+            closePipe(in, writer);
+        }
+
+        if (failure.get() != null) {
+            log.error("Could not pack the build context of " + dockerfile, failure.get());
+            throw new IllegalStateException(failure.get());
+        }
+    }
+
+    /**
+     * Closes the reading end of the tar pipe and waits for the writer to finish
+     *
+     * @param in     reading end of the pipe
+     * @param writer the thread writing the tar, null if it was not started
+     */
+    private void closePipe(@NotNull PipedInputStream in, @Nullable Thread writer) {
+        try {
+            in.close();
+            if (writer != null) {
+                writer.join();
+            }
+        } catch (IOException e) {
+            log.warn("Could not close the build context stream", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Pulls the image that was pushed by the previous build of the same build type, so its layers can be used as cache.
+     *
+     * @param tag tag of the image
+     * @return true if the image was pulled
+     */
+    private boolean pullPreviousImage(@NotNull String tag) {
+        var separator = tag.lastIndexOf(':');
+        var start = System.currentTimeMillis();
+        try {
+            client.pullImageCmd(tag.substring(0, separator))
+                    .withTag(tag.substring(separator + 1))
+                    .exec(new PullImageResultCallback())
+                    .awaitCompletion();
+            log.info("Pulled " + tag + " as build cache in " + (System.currentTimeMillis() - start) + " ms");
+            return true;
+        } catch (NotFoundException | DockerClientException e) {
+            log.info("No previous image " + tag + " to use as build cache");
+        } catch (DockerException e) {
+            // the cache is only an optimization, an unreachable or unauthorized registry must not fail the build
+            log.warn("Could not pull previous image " + tag + " to use as build cache, building without it", e);
+        } catch (InterruptedException e) {
+            log.error("pulling image failed", e);
+            Thread.currentThread().interrupt();
+        }
+
+        return false;
+    }
+
+    /**
+     * @param tag tag of a local image
+     * @return the content addressed id of the image, or null if the image is not available locally because its build
+     * was skipped. Content addressed tags change whenever the image does, so the id is not needed in that case.
+     */
+    public String getImageId(String tag) {
+        try {
+            return client.inspectImageCmd(tag).exec().getId();
+        } catch (NotFoundException e) {
+            return null;
+        }
+    }
 }
@@ -0,0 +1,76 @@
+package de.worldiety.autocd.docker;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * A Dockerfile together with the directory that is its build context. The Dockerfile either exists in the project or
+ * is generated by AutoCD, generated ones are only kept in memory and streamed into the build.
+ */
+public class Dockerfile {
+    private final Path contextDirectory;
+    private final File file;
+    private final byte[] content;
+
+    private Dockerfile(@NotNull Path contextDirectory, @Nullable File file, @Nullable byte[] content) {
+        this.contextDirectory = contextDirectory.toAbsolutePath().normalize();
+        this.file = file;
+        this.content = content;
+    }
+
+    /**
+     * @param file a Dockerfile of the project, its directory is the build context
+     * @return the Dockerfile, its content is read when it is built
+     */
+    @NotNull
+    public static Dockerfile of(@NotNull File file) {
+        var absoluteFile = file.getAbsoluteFile();
+        return new Dockerfile(absoluteFile.getParentFile().toPath(), absoluteFile, null);
+    }
+
+    /**
+     * @param contextDirectory the build context
+     * @param content          the generated Dockerfile
+     * @return the Dockerfile, it is not written to the context directory
+     */
+    @NotNull
+    static Dockerfile generated(@NotNull Path contextDirectory, @NotNull byte[] content) {
+        return new Dockerfile(contextDirectory, null, content.clone());
+    }
+
+    @NotNull
+    public Path getContextDirectory() {
+        return contextDirectory;
+    }
+
+    /**
+     * @return the file of the Dockerfile, null if it was generated
+     */
+    @Nullable
+    public File getFile() {
+        return file;
+    }
+
+    public boolean isGenerated() {
+        return file == null;
+    }
+
+    /**
+     * @return the content of the Dockerfile
+     * @throws IOException if the Dockerfile of the project could not be read
+     */
+    @NotNull
+    byte[] getContent() throws IOException {
+        return file == null ? content.clone() : Files.readAllBytes(file.toPath());
+    }
+
+    @Override
+    public String toString() {
+        return file == null ? "generated Dockerfile in " + contextDirectory : file.toString();
+    }
+}
@@ -1,165 +1,246 @@
 package de.worldiety.autocd.docker;
 
 import de.worldiety.autocd.util.FileType;
-import org.apache.commons.io.FilenameUtils;
-import org.apache.commons.io.IOUtils;
-import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import java.io.*;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Objects;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class DockerfileHandler {
-    private List<File> fileList = new ArrayList<>();
+    private static final Logger log = LoggerFactory.getLogger(DockerfileHandler.class);
+    //Never needed inside an image, independent of the file type
+    private static final List<String> COMMON_DOCKER_IGNORE = List.of(".git", ".idea", ".vscode", "*.iml");
+    private static final String DOCKER_IGNORE_HEADER = "# added by autocd";
+    //RUN --mount needs a newer Dockerfile frontend than the one built into older docker versions
+    private static final String BUILDKIT_SYNTAX = "# syntax=docker/dockerfile:1.2\n";
+    //Source files are found well above this depth, deeper levels are generated or vendored code
+    static final int MAX_SCAN_DEPTH = 16;
+    private static final int LOGGED_DIRECTORIES = 5;
+    private static final Map<String, byte[]> TEMPLATES = new ConcurrentHashMap<>();
+    private final Path directory;
+    private final FileTypeDetector detector;
+    private boolean cacheMounts;
+    private boolean appCds;
 
     public DockerfileHandler(String path) {
-        prepFileList(path);
+        directory = Path.of(path);
+        if (!Files.isDirectory(directory)) {
+            throw new IllegalArgumentException(path + " is not a directory!");
+        }
+
+        detector = new FileTypeDetector(directory, new ProjectScanner(directory, getPrunedDirectories(), MAX_SCAN_DEPTH));
     }
 
     /**
-     * returns a specified file from the resource folder
-     *
-     * @param fileName
-     * @return
+     * @return the root directory of the project, which is also the build context
      */
-    @NotNull
-    @Contract("_ -> new")
-    private InputStream getFileFromResources(String fileName) {
-        var classLoader = Thread.currentThread().getContextClassLoader();
-        if (classLoader == null) {
-            classLoader = getClass().getClassLoader();
-        }
-        return Objects.requireNonNull(classLoader.getResourceAsStream(fileName));
-    }
-
-    public List<File> getFileList() {
-        return fileList;
+    public Path getDirectory() {
+        return directory;
     }
 
-    public void setFileList(List<File> fileList) {
-        this.fileList = fileList;
+    /**
+     * @return names of directories that never contain sources of the project: VCS and IDE folders as well as the
+     * dependency and build output folders of every file type
+     */
+    @NotNull
+    static Set<String> getPrunedDirectories() {
+        return Stream.concat(COMMON_DOCKER_IGNORE.stream(), Arrays.stream(FileType.values()).flatMap(it -> it.getDockerIgnore().stream()))
+                .collect(Collectors.toSet());
     }
 
     /**
-     * Will list all files within a given directory. If there is another directory found, it will step into that
-     * directory and will list those files as well.
+     * returns a template from the resource folder, every template is only read once
      *
-     * @param directoryPath
+     * @param fileName name of the template
+     * @return the content of the template
      */
-    private void prepFileList(String directoryPath) {
-        var directory = new File(directoryPath);
-
-        var fList = directory.listFiles();
+    @NotNull
+    private static byte[] getTemplate(@NotNull String fileName) {
+        return TEMPLATES.computeIfAbsent(fileName, name -> {
+            var classLoader = Thread.currentThread().getContextClassLoader();
+            if (classLoader == null) {
+                classLoader = DockerfileHandler.class.getClassLoader();
+            }
 
-        if (fList == null) {
-            throw new IllegalArgumentException(directoryPath + " is not a directory!");
-        }
+            try (var in = classLoader.getResourceAsStream(name)) {
+                if (in == null) {
+                    throw new IllegalStateException("Missing template " + name);
+                }
 
-        for (var file : fList) {
-            if (file.isFile()) {
-                fileList.add(file);
-            } else if (file.isDirectory()) {
-                prepFileList(file.getAbsolutePath());
+                return in.readAllBytes();
+            } catch (IOException e) {
+                log.error("Could not read template " + name, e);
+                throw new IllegalStateException(e);
             }
-        }
+        });
     }
 
     /**
-     * returns the file type based on its extension.
-     *
-     * @param listFile
-     * @return String
+     * @param cacheMounts if true, the generated Dockerfile mounts the download cache of the package manager into the
+     *                    build steps. Such a Dockerfile can only be built with BuildKit.
      */
-    private String getFileExt(@NotNull File listFile) {
-        return FilenameUtils.getExtension(listFile.getAbsolutePath());
+    public void setCacheMounts(boolean cacheMounts) {
+        this.cacheMounts = cacheMounts;
     }
 
     /**
-     * Mps the found file extension to the fitting file type
-     *
-     * @param ext
-     * @return FileType
+     * @param appCds if true and the file type supports it, the generated Dockerfile creates a class data sharing
+     *               archive with a training run of the application and starts the container with it
      */
-    @Contract(pure = true)
-    private FileType mapFileTypeToFileType(@NotNull String ext) {
-        switch (ext) {
-            case "go":
-                return FileType.GO;
-            case "java":
-                return FileType.JAVA;
-            case "vue":
-                var isNuxt = new File("nuxt.config.js").exists();
-                return isNuxt ? FileType.NUXT : FileType.VUE;
-            case "ts":
-            case "js":
-                var packageJson = new File("package.json");
-
-                try {
-                    var packStr = Files.readString(packageJson.toPath());
-                    if (packStr.contains("@kloudsoftware/eisen")) {
-                        return FileType.EISEN;
-                    }
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            default:
-                return FileType.OTHER;
-        }
+    public void setAppCds(boolean appCds) {
+        this.appCds = appCds;
     }
 
-
     public FileType getFileType() {
-        return fileList.stream()
-                .map(this::getFileExt)
-                .map(this::mapFileTypeToFileType)
-                .filter(it -> it.getDockerConfig() != null)
-                .findFirst().orElse(FileType.OTHER);
+        return detector.detect();
     }
 
     /**
      * This method will create a fitting docker configuration based on the FileType.
      * If the project already has a build.sh file, autoCD will use the given one. If there is none, it will create a default
      * build.sh file.
+     * The Dockerfile is assembled in memory and not written to the project, the same project always results in the same
+     * bytes, so the build cache keys stay stable.
      *
-     * @return File
+     * @return the generated Dockerfile
      */
-    public Optional<File> findDockerConfig() {
-        var opt = fileList.stream()
-                .map(this::getFileExt)
-                .map(this::mapFileTypeToFileType)
-                .filter(it -> it.getDockerConfig() != null)
-                .findFirst();
-
-        return opt.map(ftype -> {
-            var customBuildsh = new File("build.sh");
-            var nFile = new File("Dockerfile");
+    public Optional<Dockerfile> findDockerConfig() {
+        return Optional.of(getFileType()).filter(it -> it.getDockerConfig() != null).map(ftype -> {
+            var customBuildsh = directory.resolve("build.sh").toFile();
+            var out = new ByteArrayOutputStream();
 
-            try {
-                var fout = new FileOutputStream(nFile);
+            if (cacheMounts) {
+                out.writeBytes(BUILDKIT_SYNTAX.getBytes(StandardCharsets.UTF_8));
+            }
 
-                IOUtils.copy(getFileFromResources(ftype.getDockerConfig()), fout);
-                fout.flush();
+            out.writeBytes(getTemplate(ftype.getDockerConfig()));
+            out.writeBytes(getDependencyLayers(ftype).getBytes(StandardCharsets.UTF_8));
 
-                if (customBuildsh.exists()) {
-                    IOUtils.copy(getFileFromResources("run-build-part"), fout);
-                } else {
-                    var bfout = new BufferedWriter(new OutputStreamWriter(fout));
-                    bfout.write(ftype.getDefaultBuild());
-                    bfout.flush();
-                }
+            if (customBuildsh.exists()) {
+                out.writeBytes(getTemplate("run-build-part"));
+            } else {
+                out.writeBytes(withCacheMount(ftype, ftype.getDefaultBuild()).getBytes(StandardCharsets.UTF_8));
+            }
 
-                IOUtils.copy(getFileFromResources(ftype.getFinalDocker()), fout);
-                fout.flush();
+            var finalDocker = appCds && ftype.getAppCdsFinalDocker() != null ? ftype.getAppCdsFinalDocker() : ftype.getFinalDocker();
+            out.writeBytes(getTemplate(finalDocker));
 
+            try {
+                writeDockerIgnore(ftype);
             } catch (IOException e) {
-                e.printStackTrace();
+                // a read-only workspace can still be built, just with a larger build context
+                log.warn("Could not update " + directory.resolve(BuildContext.DOCKER_IGNORE), e);
             }
 
-            return nFile.getAbsoluteFile();
+            return Dockerfile.generated(directory, out.toByteArray());
         });
     }
+
+    /**
+     * Copies only the files that declare the dependencies and resolves them, before the sources are copied. The
+     * resolved dependencies end up in their own layer, which is reused from the cache as long as these files don't
+     * change, instead of being downloaded again on every change of a source file.
+     *
+     * @param ftype the file type of the project
+     * @return the instructions of the builder stage that follow the base image
+     */
+    @NotNull
+    private String getDependencyLayers(@NotNull FileType ftype) {
+        var dependencyFiles = ftype.getDependencyFiles();
+        if (dependencyFiles.isEmpty() || !Files.exists(directory.resolve(dependencyFiles.get(0)))) {
+            return "COPY . .\n";
+        }
+
+        var files = dependencyFiles.stream()
+                .filter(it -> Files.isRegularFile(directory.resolve(it)))
+                .collect(Collectors.joining(" "));
+        var layers = new StringBuilder("COPY " + files + " ./\n");
+        dependencyFiles.stream()
+                .filter(it -> Files.isDirectory(directory.resolve(it)))
+                .forEach(it -> layers.append("COPY ").append(it).append(" ").append(it).append("/\n"));
+
+        return layers.append(withCacheMount(ftype, ftype.getInstallDependencies()))
+                .append("COPY . .\n")
+                .toString();
+    }
+
+    /**
+     * @param ftype       the file type of the project
+     * @param instruction a RUN instruction of the builder stage
+     * @return the instruction with the cache of the package manager mounted, if cache mounts are enabled
+     */
+    @NotNull
+    private String withCacheMount(@NotNull FileType ftype, @NotNull String instruction) {
+        if (!cacheMounts || ftype.getCacheDirectory() == null) {
+            return instruction;
+        }
+
+        return instruction.replaceFirst("^RUN ", "RUN --mount=type=cache,target=" + ftype.getCacheDirectory() + " ");
+    }
+
+    /**
+     * Adds the ignore patterns of the file type to the .dockerignore of the project, creating it if there is none, so
+     * build outputs and dependency folders are not sent to the docker daemon. The patterns are put in front of the
+     * existing ones, so the project can still re-include files with "!" patterns.
+     *
+     * @param ftype the file type of the project
+     * @throws IOException if the .dockerignore could not be read or written
+     */
+    private void writeDockerIgnore(@NotNull FileType ftype) throws IOException {
+        var dockerIgnore = directory.resolve(BuildContext.DOCKER_IGNORE).toFile();
+        var existing = dockerIgnore.exists() ? Files.readAllLines(dockerIgnore.toPath()) : List.<String>of();
+        var existingPatterns = BuildContext.parseIgnorePatterns(existing);
+        var missing = Stream.concat(COMMON_DOCKER_IGNORE.stream(), ftype.getDockerIgnore().stream())
+                .filter(it -> !existingPatterns.contains(it))
+                .collect(Collectors.toList());
+
+        if (missing.isEmpty()) {
+            logBuildContext(new BuildContext(directory, existingPatterns).summarize(false));
+            return;
+        }
+
+        var lines = new ArrayList<String>();
+        lines.add(DOCKER_IGNORE_HEADER);
+        lines.addAll(missing);
+        lines.addAll(existing);
+        Files.write(dockerIgnore.toPath(), lines);
+
+        log.info("Build context: {} before adding {} to .dockerignore",
+                formatSize(new BuildContext(directory, existingPatterns).getSize()), missing);
+        logBuildContext(new BuildContext(directory, BuildContext.parseIgnorePatterns(lines)).summarize(false));
+    }
+
+    /**
+     * Logs the size of the build context and the directories with the most files in it, which are the first candidates
+     * for the .dockerignore if the context is large
+     *
+     * @param summary scan of the build context
+     */
+    private void logBuildContext(@NotNull ScanSummary summary) {
+        log.info("Build context: {} in {} files", formatSize(summary.getSize()), summary.getFileCount());
+        var root = directory.toAbsolutePath().normalize();
+        for (var entry : summary.getLargestDirectories(LOGGED_DIRECTORIES)) {
+            var path = root.relativize(entry.getKey()).toString();
+            log.info("  {} files in {}", entry.getValue(), path.isEmpty() ? "." : path);
+        }
+    }
+
+    @NotNull
+    private String formatSize(long bytes) {
+        return String.format("%.1f MB", bytes / (1024.0 * 1024.0));
+    }
 }
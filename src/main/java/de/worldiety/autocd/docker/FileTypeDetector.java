@@ -0,0 +1,115 @@
+package de.worldiety.autocd.docker;
+
+import de.worldiety.autocd.util.FileType;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Classifies a project once and remembers the result. The marker files in the project root (build scripts, go.mod,
+ * package.json, nuxt.config.js) are checked first. Only if they don't point to exactly one file type, the source files
+ * are counted per extension in a single scan, a marker file weighs as much as {@link #MARKER_WEIGHT} source files.
+ */
+class FileTypeDetector {
+    private static final Logger log = LoggerFactory.getLogger(FileTypeDetector.class);
+    private static final int MARKER_WEIGHT = 1000;
+    private static final List<String> GRADLE_MARKERS = List.of("build.gradle", "build.gradle.kts", "settings.gradle", "settings.gradle.kts");
+    private static final List<String> NUXT_MARKERS = List.of("nuxt.config.js", "nuxt.config.ts");
+    private final Path directory;
+    private final ProjectScanner scanner;
+    private FileType fileType;
+
+    FileTypeDetector(@NotNull Path directory, @NotNull ProjectScanner scanner) {
+        this.directory = directory;
+        this.scanner = scanner;
+    }
+
+    /**
+     * @return the file type of the project, {@link FileType#OTHER} if it is not supported
+     */
+    @NotNull
+    synchronized FileType detect() {
+        if (fileType == null) {
+            fileType = classify();
+            log.info("Detected file type {}", fileType);
+        }
+
+        return fileType;
+    }
+
+    @NotNull
+    private FileType classify() {
+        var packageJson = readPackageJson();
+        var isNuxt = NUXT_MARKERS.stream().anyMatch(this::exists);
+        var isEisen = packageJson.contains("@kloudsoftware/eisen");
+        var webType = isNuxt ? FileType.NUXT : FileType.VUE;
+
+        var scores = new EnumMap<FileType, Long>(FileType.class);
+        if (GRADLE_MARKERS.stream().anyMatch(this::exists)) {
+            scores.merge(FileType.JAVA, (long) MARKER_WEIGHT, Long::sum);
+        }
+        if (exists("go.mod")) {
+            scores.merge(FileType.GO, (long) MARKER_WEIGHT, Long::sum);
+        }
+        if (isNuxt || packageJson.contains("\"vue\"")) {
+            scores.merge(webType, (long) MARKER_WEIGHT, Long::sum);
+        } else if (isEisen) {
+            scores.merge(FileType.EISEN, (long) MARKER_WEIGHT, Long::sum);
+        }
+
+        if (scores.size() == 1) {
+            return scores.keySet().iterator().next();
+        }
+
+        var extensions = countExtensions();
+        scores.merge(FileType.JAVA, extensions.getOrDefault("java", 0L) + extensions.getOrDefault("kt", 0L), Long::sum);
+        scores.merge(FileType.GO, extensions.getOrDefault("go", 0L), Long::sum);
+        scores.merge(webType, extensions.getOrDefault("vue", 0L), Long::sum);
+        if (isEisen) {
+            scores.merge(FileType.EISEN, extensions.getOrDefault("js", 0L) + extensions.getOrDefault("ts", 0L), Long::sum);
+        }
+
+        log.debug("File type scores {}", scores);
+        return scores.entrySet().stream()
+                .filter(it -> it.getValue() > 0)
+                .max(Map.Entry.comparingByValue())
+                .map(Map.Entry::getKey)
+                .orElse(FileType.OTHER);
+    }
+
+    @NotNull
+    private Map<String, Long> countExtensions() {
+        try {
+            return scanner.summarize(false).getExtensions();
+        } catch (IOException e) {
+            log.error("Could not scan " + directory, e);
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @NotNull
+    private String readPackageJson() {
+        var packageJson = directory.resolve("package.json");
+        if (!Files.isRegularFile(packageJson)) {
+            return "";
+        }
+
+        try {
+            return Files.readString(packageJson);
+        } catch (IOException e) {
+            log.warn("Could not read " + packageJson, e);
+            return "";
+        }
+    }
+
+    private boolean exists(@NotNull String marker) {
+        return Files.isRegularFile(directory.resolve(marker));
+    }
+}
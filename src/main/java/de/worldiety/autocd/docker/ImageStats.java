@@ -0,0 +1,139 @@
+package de.worldiety.autocd.docker;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Numbers collected while building and pushing one image. Updated by the docker callbacks and read when the image is
+ * done, or while it is in progress for periodic reports.
+ */
+public class ImageStats {
+    private final String tag;
+    private final AtomicLong buildMillis = new AtomicLong();
+    private final AtomicInteger steps = new AtomicInteger();
+    private final AtomicInteger cachedSteps = new AtomicInteger();
+    private final AtomicLong pushMillis = new AtomicLong();
+    private final AtomicLong pushedBytes = new AtomicLong();
+    private final AtomicInteger pushedLayers = new AtomicInteger();
+    private final AtomicInteger existingLayers = new AtomicInteger();
+    private final AtomicLong imageSize = new AtomicLong();
+    private final AtomicLong startupMillis = new AtomicLong();
+    private final AtomicLong startupMillisWithArchive = new AtomicLong();
+
+    ImageStats(String tag) {
+        this.tag = tag;
+    }
+
+    public String getTag() {
+        return tag;
+    }
+
+    public long getBuildMillis() {
+        return buildMillis.get();
+    }
+
+    void setBuildMillis(long millis) {
+        buildMillis.set(millis);
+    }
+
+    public int getSteps() {
+        return steps.get();
+    }
+
+    void setSteps(int count) {
+        steps.set(count);
+    }
+
+    public int getCachedSteps() {
+        return cachedSteps.get();
+    }
+
+    void incrementCachedSteps() {
+        cachedSteps.incrementAndGet();
+    }
+
+    public long getPushMillis() {
+        return pushMillis.get();
+    }
+
+    void setPushMillis(long millis) {
+        pushMillis.set(millis);
+    }
+
+    public long getPushedBytes() {
+        return pushedBytes.get();
+    }
+
+    void setPushedBytes(long bytes) {
+        pushedBytes.set(bytes);
+    }
+
+    public int getPushedLayers() {
+        return pushedLayers.get();
+    }
+
+    void incrementPushedLayers() {
+        pushedLayers.incrementAndGet();
+    }
+
+    public int getExistingLayers() {
+        return existingLayers.get();
+    }
+
+    void incrementExistingLayers() {
+        existingLayers.incrementAndGet();
+    }
+
+    /**
+     * @return size of the built image including its base image, nodes without any of its layers pull that much
+     */
+    public long getImageSize() {
+        return imageSize.get();
+    }
+
+    void setImageSize(long bytes) {
+        imageSize.set(bytes);
+    }
+
+    /**
+     * @return time until the application loaded its last class when started without a class data sharing archive,
+     * measured during the build. 0 if it was not measured.
+     */
+    public long getStartupMillis() {
+        return startupMillis.get();
+    }
+
+    /**
+     * @return the same as {@link #getStartupMillis()}, but started with the archive created during the build
+     */
+    public long getStartupMillisWithArchive() {
+        return startupMillisWithArchive.get();
+    }
+
+    void setStartupMillis(long withoutArchive, long withArchive) {
+        startupMillis.set(withoutArchive);
+        startupMillisWithArchive.set(withArchive);
+    }
+
+    /**
+     * @param bytes  bytes transferred
+     * @param millis time taken
+     * @return the throughput in bytes per second
+     */
+    static long bytesPerSecond(long bytes, long millis) {
+        return millis == 0 ? 0 : bytes * 1000 / millis;
+    }
+
+    static String formatBytes(long bytes) {
+        return String.format("%.1f MB", bytes / (1024.0 * 1024.0));
+    }
+
+    @Override
+    public String toString() {
+        return tag + ": " + formatBytes(getImageSize()) + ", build " + getBuildMillis() + " ms (" + getCachedSteps() + "/" + getSteps() + " steps cached), push "
+                + getPushMillis() + " ms (" + formatBytes(getPushedBytes()) + ", "
+                + formatBytes(bytesPerSecond(getPushedBytes(), getPushMillis())) + "/s, "
+                + getPushedLayers() + " layers pushed, " + getExistingLayers() + " already existed)"
+                + (getStartupMillis() == 0 ? "" : ", startup " + getStartupMillis() + " ms, " + getStartupMillisWithArchive() + " ms with AppCDS");
+    }
+}
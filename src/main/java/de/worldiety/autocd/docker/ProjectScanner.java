@@ -0,0 +1,145 @@
+package de.worldiety.autocd.docker;
+
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * Scans the files of a project in parallel, every directory is listed by its own fork/join task. Pruned directories
+ * are not entered, neither are directories below the depth limit. Symbolic links are not followed, they are reported
+ * as links.
+ */
+class ProjectScanner {
+    private static final Logger log = LoggerFactory.getLogger(ProjectScanner.class);
+    //Scanning mostly waits for the file system, especially on network mounted workspaces, so more threads than cores pay off
+    private static final ForkJoinPool POOL = new ForkJoinPool(Math.max(4, 2 * Runtime.getRuntime().availableProcessors()));
+    private final Path root;
+    private final Predicate<Path> prunedDirectory;
+    private final Predicate<Path> includedEntry;
+    private final int maxDepth;
+
+    /**
+     * @param root              directory to scan
+     * @param prunedDirectories names of directories that are skipped with everything in them, like .git or node_modules
+     * @param maxDepth          number of directory levels below the root that are scanned
+     */
+    ProjectScanner(@NotNull Path root, @NotNull Set<String> prunedDirectories, int maxDepth) {
+        this(root, dir -> prunedDirectories.contains(dir.getFileName().toString()), file -> true, maxDepth);
+    }
+
+    /**
+     * @param root            directory to scan
+     * @param prunedDirectory decides if a directory is skipped with everything in it
+     * @param includedEntry   decides if a file, symbolic link or directory that is not pruned is part of the result
+     * @param maxDepth        number of directory levels below the root that are scanned
+     */
+    ProjectScanner(@NotNull Path root, @NotNull Predicate<Path> prunedDirectory, @NotNull Predicate<Path> includedEntry, int maxDepth) {
+        this.root = root;
+        this.prunedDirectory = prunedDirectory;
+        this.includedEntry = includedEntry;
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * @param keepFiles if true, the summary contains the included files, directories and symbolic links
+     * @return extension histogram, file counts per directory and total size of the included regular files
+     * @throws IOException if the root directory could not be read, unreadable directories below it are skipped
+     */
+    @NotNull
+    ScanSummary summarize(boolean keepFiles) throws IOException {
+        var start = System.currentTimeMillis();
+        try {
+            var summary = POOL.invoke(new DirectoryTask(root, 0, keepFiles));
+            log.debug("Scanned {} files in {} ms", summary.getFileCount(), System.currentTimeMillis() - start);
+            return summary;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Applies the function to every item in the pool of the scanner, for work per file like hashing
+     *
+     * @param items    the items
+     * @param function the function, may throw {@link UncheckedIOException}
+     * @return the results in the order of the items
+     */
+    @NotNull
+    static <T, R> List<R> map(@NotNull List<T> items, @NotNull Function<T, R> function) {
+        // a parallel stream started inside of a pool runs in that pool instead of the common one
+        return POOL.submit(() -> items.parallelStream().map(function).collect(Collectors.toList())).join();
+    }
+
+    private class DirectoryTask extends RecursiveTask<ScanSummary> {
+        //RecursiveTask is serializable, the tasks never are serialized though
+        private static final long serialVersionUID = 1L;
+        private final Path directory;
+        private final int depth;
+        private final boolean keepFiles;
+
+        DirectoryTask(Path directory, int depth, boolean keepFiles) {
+            this.directory = directory;
+            this.depth = depth;
+            this.keepFiles = keepFiles;
+        }
+
+        @Override
+        protected ScanSummary compute() {
+            var summary = new ScanSummary(keepFiles);
+            var subdirectories = new ArrayList<DirectoryTask>();
+            try (var entries = Files.newDirectoryStream(directory)) {
+                for (var entry : entries) {
+                    BasicFileAttributes attrs;
+                    try {
+                        attrs = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    } catch (IOException e) {
+                        // unreadable files say nothing about the project
+                        continue;
+                    }
+
+                    if (attrs.isDirectory()) {
+                        if (depth + 1 < maxDepth && !prunedDirectory.test(entry)) {
+                            if (keepFiles && includedEntry.test(entry)) {
+                                summary.addDirectory(entry);
+                            }
+
+                            subdirectories.add(new DirectoryTask(entry, depth + 1, keepFiles));
+                        }
+                    } else if (attrs.isSymbolicLink()) {
+                        if (keepFiles && includedEntry.test(entry)) {
+                            summary.addSymbolicLink(entry);
+                        }
+                    } else if (attrs.isRegularFile() && includedEntry.test(entry)) {
+                        summary.add(entry, attrs.size());
+                    }
+                }
+            } catch (IOException e) {
+                if (depth == 0) {
+                    throw new UncheckedIOException(e);
+                }
+
+                log.debug("Skipping unreadable directory " + directory, e);
+                return summary;
+            }
+
+            invokeAll(subdirectories);
+            subdirectories.forEach(it -> summary.merge(it.join()));
+            return summary;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package de.worldiety.autocd.docker;
+
+import com.github.dockerjava.api.model.PushResponseItem;
+import com.github.dockerjava.core.command.PushImageResultCallback;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Aggregates the progress of a push per layer instead of logging every line. A summary with the transferred bytes,
+ * throughput and the number of layers that already existed in the registry is logged periodically and once the push is
+ * done.
+ */
+class PushProgressCallback extends PushImageResultCallback {
+    private static final Logger log = LoggerFactory.getLogger(PushProgressCallback.class);
+    private static final long REPORT_INTERVAL_MS = 10000;
+    private final ImageStats stats;
+    private final Map<String, Long> bytesByLayer = new HashMap<>();
+    private final long start = System.currentTimeMillis();
+    private long lastReport = start;
+
+    PushProgressCallback(ImageStats stats) {
+        this.stats = stats;
+    }
+
+    @Override
+    public void onNext(@NotNull PushResponseItem item) {
+        synchronized (bytesByLayer) {
+            var status = item.getStatus();
+            var layer = item.getId();
+            if (status != null && layer != null) {
+                if (status.equals("Layer already exists")) {
+                    stats.incrementExistingLayers();
+                } else if (status.equals("Pushed")) {
+                    stats.incrementPushedLayers();
+                } else if (status.equals("Pushing") && item.getProgressDetail() != null && item.getProgressDetail().getCurrent() != null) {
+                    bytesByLayer.put(layer, item.getProgressDetail().getCurrent());
+                    stats.setPushedBytes(bytesByLayer.values().stream().mapToLong(Long::longValue).sum());
+                }
+            }
+
+            var now = System.currentTimeMillis();
+            if (now - lastReport >= REPORT_INTERVAL_MS) {
+                lastReport = now;
+                log.info("Pushing {}: {} after {} ms, {}/s", stats.getTag(), ImageStats.formatBytes(stats.getPushedBytes()),
+                        now - start, ImageStats.formatBytes(ImageStats.bytesPerSecond(stats.getPushedBytes(), now - start)));
+            }
+        }
+
+        if (item.isErrorIndicated()) {
+            var errorDetail = item.getErrorDetail();
+            log.error("Pushing {} failed: {}", stats.getTag(), errorDetail == null ? "unknown error" : errorDetail.getMessage());
+        }
+
+        super.onNext(item);
+    }
+
+    @Override
+    public void onComplete() {
+        stats.setPushMillis(System.currentTimeMillis() - start);
+        super.onComplete();
+    }
+}
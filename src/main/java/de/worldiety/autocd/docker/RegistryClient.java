@@ -0,0 +1,167 @@
+package de.worldiety.autocd.docker;
+
+import com.google.gson.JsonParser;
+import de.worldiety.autocd.env.Environment;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Checks whether a tag exists in a registry through the registry HTTP API, without pulling anything. Registries that
+ * use token authentication (like the GitLab registry) are supported as well as basic authentication and anonymous
+ * registries like a local registry:2.
+ */
+class RegistryClient {
+    private static final Logger log = LoggerFactory.getLogger(RegistryClient.class);
+    private static final Pattern CHALLENGE_PARAMETER = Pattern.compile("(\\w+)=\"([^\"]*)\"");
+    private static final String MANIFEST_TYPES = String.join(",",
+            "application/vnd.docker.distribution.manifest.v2+json",
+            "application/vnd.docker.distribution.manifest.list.v2+json",
+            "application/vnd.oci.image.manifest.v1+json",
+            "application/vnd.oci.image.index.v1+json");
+    private final HttpClient client = HttpClient.newBuilder()
+            .connectTimeout(Duration.ofSeconds(10))
+            .followRedirects(HttpClient.Redirect.NORMAL)
+            .build();
+    private final Environment environment;
+
+    RegistryClient(Environment environment) {
+        this.environment = environment;
+    }
+
+    /**
+     * @param image image in the form registry/repository:tag
+     * @return true if the registry has a manifest for the tag, false if it doesn't or could not be asked
+     */
+    boolean exists(@NotNull String image) {
+        var registryEnd = image.indexOf('/');
+        var tagStart = image.lastIndexOf(':');
+        var registry = image.substring(0, registryEnd);
+        var repository = image.substring(registryEnd + 1, tagStart);
+        var tag = image.substring(tagStart + 1);
+        var uri = URI.create(getScheme(registry) + "://" + registry + "/v2/" + repository + "/manifests/" + tag);
+
+        try {
+            var response = head(uri, null);
+            if (response.statusCode() == 401) {
+                var authorization = getAuthorization(response.headers().firstValue("WWW-Authenticate").orElse(""));
+                if (authorization != null) {
+                    response = head(uri, authorization);
+                }
+            }
+
+            log.info("HEAD " + uri + " -> " + response.statusCode());
+            return response.statusCode() == 200;
+        } catch (IOException e) {
+            log.warn("Could not check registry for " + image, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        return false;
+    }
+
+    private HttpResponse<Void> head(URI uri, @Nullable String authorization) throws IOException, InterruptedException {
+        var request = HttpRequest.newBuilder(uri)
+                .method("HEAD", HttpRequest.BodyPublishers.noBody())
+                .header("Accept", MANIFEST_TYPES)
+                .timeout(Duration.ofSeconds(30));
+
+        if (authorization != null) {
+            request.header("Authorization", authorization);
+        }
+
+        return client.send(request.build(), HttpResponse.BodyHandlers.discarding());
+    }
+
+    /**
+     * Answers the authentication challenge of the registry. For a bearer challenge a token for the requested scope is
+     * fetched from the token service using the registry credentials.
+     *
+     * @param challenge value of the WWW-Authenticate header
+     * @return value for the Authorization header, or null if the challenge is not supported
+     */
+    @Nullable
+    private String getAuthorization(@NotNull String challenge) throws IOException, InterruptedException {
+        var basic = getBasicAuthorization();
+        if (challenge.startsWith("Basic")) {
+            return basic;
+        }
+
+        if (!challenge.startsWith("Bearer")) {
+            return null;
+        }
+
+        var parameters = new HashMap<String, String>();
+        var matcher = CHALLENGE_PARAMETER.matcher(challenge);
+        while (matcher.find()) {
+            parameters.put(matcher.group(1), matcher.group(2));
+        }
+
+        var request = HttpRequest.newBuilder(URI.create(parameters.get("realm") + getQuery(parameters)))
+                .timeout(Duration.ofSeconds(30));
+        if (basic != null) {
+            request.header("Authorization", basic);
+        }
+
+        var response = client.send(request.build(), HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != 200) {
+            log.warn("Could not get registry token: " + response.statusCode());
+            return null;
+        }
+
+        var json = new JsonParser().parse(response.body()).getAsJsonObject();
+        var token = json.has("token") ? json.get("token") : json.get("access_token");
+        return token == null ? null : "Bearer " + token.getAsString();
+    }
+
+    @NotNull
+    private String getQuery(@NotNull Map<String, String> parameters) {
+        var query = new StringBuilder();
+        for (var key : new String[]{"service", "scope"}) {
+            if (parameters.containsKey(key)) {
+                query.append(query.length() == 0 ? "?" : "&")
+                        .append(key)
+                        .append("=")
+                        .append(URLEncoder.encode(parameters.get(key), StandardCharsets.UTF_8));
+            }
+        }
+
+        return query.toString();
+    }
+
+    @Nullable
+    private String getBasicAuthorization() {
+        if (environment.getRegistryUser() == null || environment.getRegistryPassword() == null) {
+            return null;
+        }
+
+        var credentials = environment.getRegistryUser() + ":" + environment.getRegistryPassword();
+        return "Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Docker talks plain http to registries on the local machine, so the same is done here
+     *
+     * @param registry host and port of the registry
+     * @return the scheme to use
+     */
+    @NotNull
+    private String getScheme(@NotNull String registry) {
+        return registry.startsWith("localhost") || registry.startsWith("127.0.0.1") ? "http" : "https";
+    }
+}
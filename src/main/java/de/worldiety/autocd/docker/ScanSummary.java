@@ -0,0 +1,138 @@
+package de.worldiety.autocd.docker;
+
+import org.apache.commons.io.FilenameUtils;
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * What a scan of a project found: the number of files per extension and per directory and their total size. The files
+ * themselves, the directories and the symbolic links are only kept if the scan was asked to.
+ */
+class ScanSummary {
+    private final Map<String, Long> extensions = new HashMap<>();
+    private final Map<Path, Long> filesPerDirectory = new HashMap<>();
+    private final List<Path> files;
+    private final List<Path> directories;
+    private final List<Path> symbolicLinks;
+    private long fileCount;
+    private long size;
+
+    ScanSummary(boolean keepFiles) {
+        files = keepFiles ? new ArrayList<>() : null;
+        directories = keepFiles ? new ArrayList<>() : null;
+        symbolicLinks = keepFiles ? new ArrayList<>() : null;
+    }
+
+    void addDirectory(@NotNull Path directory) {
+        if (directories != null) {
+            directories.add(directory);
+        }
+    }
+
+    void addSymbolicLink(@NotNull Path link) {
+        if (symbolicLinks != null) {
+            symbolicLinks.add(link);
+        }
+    }
+
+    void add(@NotNull Path file, long fileSize) {
+        extensions.merge(FilenameUtils.getExtension(file.getFileName().toString()), 1L, Long::sum);
+        filesPerDirectory.merge(file.getParent(), 1L, Long::sum);
+        fileCount++;
+        size += fileSize;
+        if (files != null) {
+            files.add(file);
+        }
+    }
+
+    void merge(@NotNull ScanSummary other) {
+        other.extensions.forEach((key, value) -> extensions.merge(key, value, Long::sum));
+        other.filesPerDirectory.forEach((key, value) -> filesPerDirectory.merge(key, value, Long::sum));
+        fileCount += other.fileCount;
+        size += other.size;
+        if (files != null && other.files != null) {
+            files.addAll(other.files);
+            directories.addAll(other.directories);
+            symbolicLinks.addAll(other.symbolicLinks);
+        }
+    }
+
+    /**
+     * @return number of files per extension, without the dot and empty for files without one
+     */
+    @NotNull
+    Map<String, Long> getExtensions() {
+        return Collections.unmodifiableMap(extensions);
+    }
+
+    @NotNull
+    Map<Path, Long> getFilesPerDirectory() {
+        return Collections.unmodifiableMap(filesPerDirectory);
+    }
+
+    /**
+     * @param limit maximum number of directories
+     * @return the directories that directly contain the most files, with their number of files, most files first
+     */
+    @NotNull
+    List<Map.Entry<Path, Long>> getLargestDirectories(int limit) {
+        return filesPerDirectory.entrySet().stream()
+                .sorted(Map.Entry.<Path, Long>comparingByValue(Comparator.reverseOrder()).thenComparing(Map.Entry.comparingByKey()))
+                .limit(limit)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * @return the found files sorted by path
+     * @throws IllegalStateException if the scan didn't keep the files
+     */
+    @NotNull
+    List<Path> getFiles() {
+        return sorted(files);
+    }
+
+    /**
+     * @return the found directories below the root sorted by path, including empty ones
+     * @throws IllegalStateException if the scan didn't keep the files
+     */
+    @NotNull
+    List<Path> getDirectories() {
+        return sorted(directories);
+    }
+
+    /**
+     * @return the found symbolic links sorted by path, they were not followed
+     * @throws IllegalStateException if the scan didn't keep the files
+     */
+    @NotNull
+    List<Path> getSymbolicLinks() {
+        return sorted(symbolicLinks);
+    }
+
+    @NotNull
+    private List<Path> sorted(List<Path> paths) {
+        if (paths == null) {
+            throw new IllegalStateException("The files were not kept by the scan");
+        }
+
+        var sorted = new ArrayList<>(paths);
+        Collections.sort(sorted);
+        return sorted;
+    }
+
+    long getFileCount() {
+        return fileCount;
+    }
+
+    long getSize() {
+        return size;
+    }
+}
@@ -38,4 +38,26 @@ public interface Environment {
     Optional<String> getBuildType();
 
     String getOrgName();
+
+    boolean shouldReconcile();
+
+    int getDeployParallelism();
+
+    int getBuildParallelism();
+
+    boolean shouldAwaitRollout();
+
+    long getRolloutTimeout();
+
+    Optional<String> getPlanDirectory();
+
+    boolean shouldUseRegistryCache();
+
+    boolean shouldUseContentTags();
+
+    boolean shouldUseBuildKit();
+
+    boolean shouldUseAppCds();
+
+    Optional<String> getServicesDirectory();
 }
@@ -101,6 +101,64 @@ public class GitlabEnvironment implements Environment {
         return null;
     }
 
+    @Override
+    public boolean shouldReconcile() {
+        return Boolean.parseBoolean(get(Environment.AUTOCD_RECONCILE));
+    }
+
+    @Override
+    public int getDeployParallelism() {
+        var parallelism = get(Environment.AUTOCD_PARALLELISM);
+        return parallelism == null ? 4 : Integer.parseInt(parallelism);
+    }
+
+    @Override
+    public int getBuildParallelism() {
+        var parallelism = get(Environment.AUTOCD_BUILD_PARALLELISM);
+        return parallelism == null ? 2 : Integer.parseInt(parallelism);
+    }
+
+    @Override
+    public boolean shouldAwaitRollout() {
+        return Boolean.parseBoolean(get(Environment.AUTOCD_AWAIT_ROLLOUT));
+    }
+
+    @Override
+    public long getRolloutTimeout() {
+        var timeout = get(Environment.AUTOCD_ROLLOUT_TIMEOUT);
+        return timeout == null ? 300 : Long.parseLong(timeout);
+    }
+
+    @Override
+    public Optional<String> getPlanDirectory() {
+        return Optional.ofNullable(get(Environment.AUTOCD_PLAN));
+    }
+
+    @Override
+    public boolean shouldUseRegistryCache() {
+        return Boolean.parseBoolean(get(Environment.AUTOCD_REGISTRY_CACHE));
+    }
+
+    @Override
+    public boolean shouldUseContentTags() {
+        return Boolean.parseBoolean(get(Environment.AUTOCD_CONTENT_TAGS));
+    }
+
+    @Override
+    public boolean shouldUseBuildKit() {
+        return Boolean.parseBoolean(get(Environment.AUTOCD_BUILDKIT));
+    }
+
+    @Override
+    public boolean shouldUseAppCds() {
+        return Boolean.parseBoolean(get(Environment.AUTOCD_APPCDS));
+    }
+
+    @Override
+    public Optional<String> getServicesDirectory() {
+        return Optional.ofNullable(get(Environment.AUTOCD_SERVICES));
+    }
+
     private enum Environment {
         //Populated by the CI if environment is set in .gitlab-ci.yml
         CI_REGISTRY,
@@ -116,6 +174,17 @@ public class GitlabEnvironment implements Environment {
         KUBE_URL,
         KUBE_CA_PEM_FILE,
         AUTOCD_DOMAIN_BASE,
-        BUILD_TYPE
+        BUILD_TYPE,
+        AUTOCD_RECONCILE,
+        AUTOCD_PARALLELISM,
+        AUTOCD_BUILD_PARALLELISM,
+        AUTOCD_AWAIT_ROLLOUT,
+        AUTOCD_ROLLOUT_TIMEOUT,
+        AUTOCD_PLAN,
+        AUTOCD_REGISTRY_CACHE,
+        AUTOCD_CONTENT_TAGS,
+        AUTOCD_BUILDKIT,
+        AUTOCD_APPCDS,
+        AUTOCD_SERVICES
     }
 }
@@ -0,0 +1,72 @@
+package de.worldiety.autocd.k8s;
+
+import io.kubernetes.client.openapi.ApiException;
+import io.kubernetes.client.openapi.apis.NetworkingV1beta1Api;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Maps every ingress host in the cluster to the namespaces that serve it. The ingresses are listed once per run, page
+ * by page, and every host collision check of the run is answered from this index. Hosts claimed during the run are
+ * added, so concurrent deploys of different namespaces can't both take the same host.
+ */
+class IngressHostIndex {
+    private static final int PAGE_SIZE = 500;
+    private final NetworkingV1beta1Api api;
+    private Map<String, Set<String>> namespacesByHost;
+
+    IngressHostIndex(NetworkingV1beta1Api api) {
+        this.api = api;
+    }
+
+    /**
+     * Checks the host and reserves it for the namespace if no other namespace uses it
+     *
+     * @param host      the host to check
+     * @param namespace the namespace that wants to use the host
+     * @return false if an ingress in a different namespace, or a deploy of a different namespace during this run,
+     * already uses the host
+     * @throws ApiException if the ingresses could not be listed
+     */
+    synchronized boolean claim(String host, String namespace) throws ApiException {
+        var namespaces = getNamespacesByHost().computeIfAbsent(host, it -> new HashSet<>());
+        if (namespaces.stream().anyMatch(it -> !it.equals(namespace))) {
+            return false;
+        }
+
+        namespaces.add(namespace);
+        return true;
+    }
+
+    @NotNull
+    private Map<String, Set<String>> getNamespacesByHost() throws ApiException {
+        if (namespacesByHost != null) {
+            return namespacesByHost;
+        }
+
+        var index = new HashMap<String, Set<String>>();
+        String continueToken = null;
+        do {
+            var page = api.listIngressForAllNamespaces(null, continueToken, null, null, PAGE_SIZE, null, null, null, null);
+            page.getItems().forEach(ingress -> {
+                if (ingress.getSpec() == null || ingress.getSpec().getRules() == null) {
+                    return;
+                }
+
+                ingress.getSpec().getRules().forEach(rule -> {
+                    if (rule.getHost() != null) {
+                        index.computeIfAbsent(rule.getHost(), it -> new HashSet<>()).add(ingress.getMetadata().getNamespace());
+                    }
+                });
+            });
+            continueToken = page.getMetadata() == null ? null : page.getMetadata().getContinue();
+        } while (continueToken != null && !continueToken.isEmpty());
+
+        namespacesByHost = index;
+        return namespacesByHost;
+    }
+}
@@ -2,14 +2,10 @@ package de.worldiety.autocd.k8s;
 
 import com.google.gson.Gson;
 import com.google.gson.JsonSyntaxException;
-import de.worldiety.autocd.docker.DockerfileHandler;
 import de.worldiety.autocd.env.Environment;
 import de.worldiety.autocd.persistence.AutoCD;
 import de.worldiety.autocd.persistence.Volume;
-import de.worldiety.autocd.util.FileType;
-import de.worldiety.autocd.util.Util;
-import io.kubernetes.client.custom.IntOrString;
-import io.kubernetes.client.custom.Quantity;
+import io.kubernetes.client.common.KubernetesObject;
 import io.kubernetes.client.custom.V1Patch;
 import io.kubernetes.client.openapi.ApiException;
 import io.kubernetes.client.openapi.apis.AppsV1Api;
@@ -17,6 +13,8 @@ import io.kubernetes.client.openapi.apis.CoreV1Api;
 import io.kubernetes.client.openapi.apis.ExtensionsV1beta1Api;
 import io.kubernetes.client.openapi.apis.NetworkingV1beta1Api;
 import io.kubernetes.client.openapi.models.*;
+import io.kubernetes.client.util.PatchUtils;
+import okhttp3.Call;
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
@@ -26,33 +24,43 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
-import static de.worldiety.autocd.util.Util.hash;
-import static de.worldiety.autocd.util.Util.isLocal;
-
 public class K8sClient {
     private static final Logger log = LoggerFactory.getLogger(K8sClient.class);
     //This needs to be set on delete Operations that should propagate to the related objects
     private static final String FOREGROUND = "Foreground";
+    //Owner of all fields written by AutoCD, server side apply uses this to figure out which fields to remove
+    private static final String FIELD_MANAGER = "autocd";
+    //Waiting for foreground deletion, the interval is doubled after every poll
+    private static final long INITIAL_BACKOFF_MS = 100;
+    private static final long MAX_BACKOFF_MS = 5000;
+    private static final long DELETION_TIMEOUT_MS = 120000;
+    private static final String RECLAIM_RETAIN = "Retain";
+    private static final String RECLAIM_DELETE = "Delete";
     private final CoreV1Api api;
-    private final DockerfileHandler finder;
-    private final String hyphenedBuildType;
-    private final String rawBuildType;
-    private final CoreV1Api patchApi;
+    private final ManifestRenderer renderer;
+    private final KubeApi kubeApi;
     private final String dockerCredentials;
     private final Environment environment;
+    private final PersistentVolumeIndex pvIndex;
+    private final IngressHostIndex ingressHostIndex;
+    private final RolloutTracker rolloutTracker;
 
     @Contract(pure = true)
-    public K8sClient(Environment env, CoreV1Api api, DockerfileHandler finder, String hyphenedBuildType, CoreV1Api patchApi, String dockerCredentials) {
+    public K8sClient(Environment env, KubeApi kubeApi, String buildType, String dockerCredentials) {
         this.environment = env;
-        this.api = api;
-        this.finder = finder;
-        this.hyphenedBuildType = "-" + hyphenedBuildType;
-        this.rawBuildType = hyphenedBuildType;
-        this.patchApi = patchApi;
+        this.kubeApi = kubeApi;
+        this.api = kubeApi.getCoreV1Api();
+        this.renderer = new ManifestRenderer(env, buildType);
         this.dockerCredentials = dockerCredentials;
+        this.pvIndex = new PersistentVolumeIndex(api);
+        this.ingressHostIndex = new IngressHostIndex(getNetworkingV1beta1Api());
+        this.rolloutTracker = new RolloutTracker(kubeApi, env.getRolloutTimeout());
     }
 
     /**
@@ -61,29 +69,90 @@ public class K8sClient {
      * @param autoCD configuration
      */
     public void deployToK8s(AutoCD autoCD) {
-        if (autoCD.getReplicas() > 1 && autoCD.getVolumes().size() != 0) {
-            this.removeDeploymentFromK8s(autoCD);
+        var manifests = renderer.render(autoCD);
+        checkHostIsAvailable(autoCD, manifests);
+
+        if (manifests.isStateful()) {
             log.info("Deploying statefulset");
-            deployStateful(autoCD);
+            deployStateful(manifests);
+        } else if (environment.shouldReconcile()) {
+            log.info("Reconciling deployment");
+            reconcile(manifests);
         } else {
             log.info("Deploying deployment");
-            deploy(autoCD);
+            deploy(manifests, autoCD);
+        }
+
+        if (environment.shouldAwaitRollout()) {
+            awaitRollout(manifests);
+        }
+    }
+
+    /**
+     * Checks that the subdomain is not served by an ingress of a different namespace
+     *
+     * @param autoCD    configuration
+     * @param manifests the rendered manifests of the configuration
+     * @throws IllegalStateException if the host is already in use
+     */
+    private void checkHostIsAvailable(AutoCD autoCD, Manifests manifests) {
+        try {
+            if (!ingressHostIndex.claim(autoCD.getSubdomain(), manifests.getNamespaceName())) {
+                throw new IllegalStateException("There is already an ingress with host: " + autoCD.getSubdomain() + " present");
+            }
+
+        } catch (ApiException e) {
+            log.error("Could not get Ingresses for all namespaces", e);
+        }
+    }
+
+    /**
+     * Waits until all pods of the deployed configuration are updated and ready
+     *
+     * @param manifests the rendered manifests of the configuration
+     * @throws IllegalStateException if the rollout did not finish in time
+     */
+    private void awaitRollout(Manifests manifests) {
+        var podSelector = "k8s-app=" + manifests.getOwner();
+        boolean finished;
+        String name;
+        if (manifests.isStateful()) {
+            var set = manifests.getStatefulSet();
+            name = set.getMetadata().getName();
+            finished = rolloutTracker.awaitStatefulSet(set.getMetadata().getNamespace(), name, podSelector);
+        } else {
+            var deployment = manifests.getDeployment();
+            name = deployment.getMetadata().getName();
+            finished = rolloutTracker.awaitDeployment(deployment.getMetadata().getNamespace(), name, podSelector);
+        }
+
+        if (!finished) {
+            throw new IllegalStateException("Rollout of " + name + " did not finish in time");
         }
     }
 
-    private void deployStateful(AutoCD autoCD) {
-        var ingress = getIngress(autoCD);
+    private void deployStateful(Manifests manifests) {
+        var ingress = manifests.getIngress();
+        var service = manifests.getService();
+        var set = manifests.getStatefulSet();
+
+        if (isUnchanged(set, () -> readStatefulSet(set))
+                && isUnchanged(service, () -> readService(service))
+                && isUnchanged(ingress, () -> readIngress(ingress))) {
+            log.info("Skipping statefulset, nothing changed");
+            return;
+        }
+
+        this.removeDeploymentByName(manifests);
         deleteIngress(ingress);
-        var service = getService(autoCD);
         deleteService(service);
-        var set = getStatefulSet(autoCD);
         deleteStatefulSet(set);
-        var nameSpace = getNamespace();
+        var nameSpace = manifests.getNamespace();
 
         createNamespace(nameSpace);
 
         if (environment.needsSecret()) {
-            addSecret();
+            addSecret(manifests);
         }
 
         createStatefulSet(set);
@@ -96,19 +165,16 @@ public class K8sClient {
         try {
             appsV1Api.createNamespacedStatefulSet(set.getMetadata().getNamespace(), set, "true", null, null);
         } catch (ApiException e) {
-            retry(set, this::createStatefulSet, e);
+            retry(set, this::createStatefulSet, e, () -> readStatefulSet(set));
         }
     }
 
     private AppsV1Api getAppsV1ApiClient() {
-        var appsV1Api = new AppsV1Api();
-        appsV1Api.setApiClient(api.getApiClient());
-        return appsV1Api;
+        return kubeApi.getAppsV1Api();
     }
 
     private void deleteStatefulSet(V1StatefulSet set) {
-        var appsV1Api = new AppsV1Api();
-        appsV1Api.setApiClient(api.getApiClient());
+        var appsV1Api = getAppsV1ApiClient();
         try {
             appsV1Api.deleteNamespacedStatefulSet(set.getMetadata().getName(), set.getMetadata().getNamespace(), "true", null, null, null, FOREGROUND, null);
         } catch (ApiException e) {
@@ -118,157 +184,221 @@ public class K8sClient {
         }
     }
 
-    private V1StatefulSet getStatefulSet(AutoCD autoCD) {
-        var meta = getNamespacedMeta();
-        var projName = environment.getProjectName();
-        meta.setName(Util.hash(getNamespaceString() + autoCD.getIdentifierRegistryImagePath() + projName).substring(0, 20));
-        var labels = Map.of("k8s-app", getK8sApp(autoCD), "serviceName", getCleanServiceNameLabel(autoCD));
-        meta.setLabels(labels);
 
-        var spec = new V1StatefulSetSpec();
-        spec.setReplicas(autoCD.getReplicas());
-        var select = new V1LabelSelector();
-        select.setMatchLabels(labels);
-        spec.setSelector(select);
+    @SuppressWarnings("DuplicatedCode")
+    private void deploy(Manifests manifests, AutoCD autoCD) {
+        var ingress = manifests.getIngress();
+        var service = manifests.getService();
+        var claims = manifests.getClaims();
+        var deployment = manifests.getDeployment();
 
-        var template = new V1PodTemplateSpec();
-        spec.setTemplate(template);
-        var templateMeta = new V1ObjectMeta();
-        template.setMetadata(templateMeta);
+        // Objects whose live fingerprint matches the generated one are left alone. The claims are recreated together
+        // with the deployment because the volumes can only be rebound while no pod uses them.
+        var ingressUnchanged = manifests.isPubliclyAccessible()
+                ? isUnchanged(ingress, () -> readIngress(ingress))
+                : isAbsent(() -> readIngress(ingress));
+        var serviceUnchanged = isUnchanged(service, () -> readService(service));
+        var workloadUnchanged = isUnchanged(deployment, () -> readDeployment(deployment))
+                && claims.stream().allMatch(claim -> isUnchanged(claim, () -> readClaim(claim)));
 
-        templateMeta.setLabels(Map.of(
-                "k8s-app", getK8sApp(autoCD),
-                "name", getName(),
-                "serviceName", getCleanServiceNameLabel(autoCD)));
-        template.setMetadata(templateMeta);
+        if (ingressUnchanged && serviceUnchanged && workloadUnchanged) {
+            log.info("Skipping deployment, nothing changed");
+            return;
+        }
 
-        var podSpec = new V1PodSpec();
-        template.setSpec(podSpec);
+        if (!ingressUnchanged) {
+            deleteIngress(ingress);
+        }
 
-        podSpec.setTerminationGracePeriodSeconds(autoCD.getTerminationGracePeriod());
+        if (!serviceUnchanged) {
+            deleteService(service);
+        }
 
-        spec.setTemplate(template);
+        List<String> pvs = List.of();
+        var claimsToCreate = claims;
+        var nameSpace = manifests.getNamespace();
+        if (!workloadUnchanged) {
+            // the rendered claims stay as they were planned and fingerprinted, only the created ones are bound
+            claimsToCreate = copyClaims(claims);
+            pvs = protectPVS(manifests, autoCD, claimsToCreate);
+            log.info(pvs.toString());
+            unprotectPVS(manifests, autoCD);
+            deleteDeployment(deployment);
+            deleteClaims(claims);
+            cleanupPVC(nameSpace.getMetadata().getName(), manifests.getOwner(), claims);
+        }
 
-        var templates = autoCD.getVolumes().stream().map(vol -> {
-            var volTemp = new V1PersistentVolumeClaim();
-            volTemp.setMetadata(new V1ObjectMetaBuilder().withName(getVolumeName(vol, autoCD)).build());
-            V1PersistentVolumeClaimSpec volumeClaimSpec = getV1PersistentVolumeClaimSpec(vol);
-            volTemp.setSpec(volumeClaimSpec);
-            return volTemp;
-        }).collect(Collectors.toList());
+        createNamespace(nameSpace);
 
-        spec.setVolumeClaimTemplates(templates);
+        if (environment.needsSecret()) {
+            addSecret(manifests);
+        }
 
-        V1ContainerBuilder containerBuilder = getV1ContainerBuilder(autoCD);
+        if (!workloadUnchanged) {
+            createClaims(claimsToCreate);
+            createDeployment(deployment);
+        }
 
-        var neededInitContainer = new ArrayList<V1Container>();
-        if (!autoCD.getVolumes().isEmpty()) {
-            var volumes = autoCD.getVolumes().stream().map(volume -> {
-                var vol = new V1VolumeMount();
-                vol.setName(getVolumeName(volume, autoCD));
-                vol.setMountPath(volume.getVolumeMount());
+        if (!serviceUnchanged) {
+            createService(service);
+        }
 
-                if (volume.getFolderPermission() != null) {
-                    neededInitContainer.add(getVolumePermissionConditioner(volume.getFolderPermission(), vol));
-                }
+        reclaimPVS(pvs);
 
-                return vol;
-            }).collect(Collectors.toList());
+        if (manifests.isPubliclyAccessible() && !ingressUnchanged) {
+            createIngress(ingress);
+        }
+    }
 
-            if (!neededInitContainer.isEmpty()) {
-                podSpec.setInitContainers(neededInitContainer);
+    /**
+     * Compares the fingerprint annotation of the generated object with the one of the live object.
+     *
+     * @param desired the generated object
+     * @param read    reads the live object
+     * @param <T>     Any Kubernetes Object
+     * @return true if the live object was generated from the same configuration
+     */
+    private <T extends KubernetesObject> boolean isUnchanged(@NotNull T desired, @NotNull ReadCall<T> read) {
+        try {
+            var annotations = read.read().getMetadata().getAnnotations();
+            return annotations != null && desired.getMetadata().getAnnotations().get(ManifestRenderer.FINGERPRINT).equals(annotations.get(ManifestRenderer.FINGERPRINT));
+        } catch (ApiException e) {
+            if (e.getCode() != 404) {
+                log.warn("Could not read " + desired.getMetadata().getName(), e);
             }
-
-            containerBuilder = containerBuilder.withVolumeMounts(volumes);
+        } catch (JsonSyntaxException e) {
+            ignoreGoogleParsingError(e);
         }
 
-        var container = containerBuilder.build();
-
-        podSpec.setContainers(List.of(container));
+        return false;
+    }
 
-        if (environment.needsSecret()) {
-            var secret = new V1LocalObjectReference();
-            secret.setName("gitlab-bot");
-            podSpec.setImagePullSecrets(List.of(secret));
+    private boolean isAbsent(@NotNull ReadCall<?> read) {
+        try {
+            read.read();
+        } catch (ApiException e) {
+            return e.getCode() == 404;
+        } catch (JsonSyntaxException e) {
+            ignoreGoogleParsingError(e);
         }
 
+        return false;
+    }
 
-        var dep = new V1StatefulSet();
-        dep.setMetadata(meta);
-        dep.setSpec(spec);
-        dep.setKind("StatefulSet");
-        dep.setApiVersion(getApiVersionAppsV1());
+    /**
+     * Brings the cluster in line with the given configuration without deleting anything first. Every object is read from
+     * the cluster and is only created or patched via server side apply if it is missing or its fingerprint differs,
+     * so unchanged services keep running during a redeploy.
+     * Volumes are only created if missing, changing the size of an existing volume still requires a regular deploy.
+     *
+     * @param manifests the rendered manifests of the configuration
+     */
+    private void reconcile(Manifests manifests) {
+        var nameSpace = manifests.getNamespace();
+        createNamespace(nameSpace);
 
-        return dep;
-    }
+        if (environment.needsSecret()) {
+            addSecret(manifests);
+        }
 
-    @NotNull
-    private V1ContainerPort getV1ContainerPort(AutoCD autoCD) {
-        var port = new V1ContainerPort();
+        var claims = manifests.getClaims();
+        createClaims(claims);
 
-        if (finder.getFileType().equals(FileType.VUE)) {
-            port.setContainerPort(autoCD.getContainerPort());
+        var appsV1Api = getAppsV1ApiClient();
+        var deployment = manifests.getDeployment();
+        var deploymentMeta = deployment.getMetadata();
+        apply(deployment, V1Deployment.class, "deployment",
+                () -> readDeployment(deployment),
+                this::createDeployment,
+                (patch, force) -> appsV1Api.patchNamespacedDeploymentCall(deploymentMeta.getName(), deploymentMeta.getNamespace(), patch, null, null, FIELD_MANAGER, force, null));
+
+        var service = manifests.getService();
+        var serviceMeta = service.getMetadata();
+        apply(service, V1Service.class, "service",
+                () -> readService(service),
+                this::createService,
+                (patch, force) -> api.patchNamespacedServiceCall(serviceMeta.getName(), serviceMeta.getNamespace(), patch, null, null, FIELD_MANAGER, force, null));
+
+        var ingress = manifests.getIngress();
+        if (manifests.isPubliclyAccessible()) {
+            var networkingV1beta1Api = getNetworkingV1beta1Api();
+            var ingressMeta = ingress.getMetadata();
+            apply(ingress, NetworkingV1beta1Ingress.class, "ingress",
+                    () -> readIngress(ingress),
+                    this::createIngress,
+                    (patch, force) -> networkingV1beta1Api.patchNamespacedIngressCall(ingressMeta.getName(), ingressMeta.getNamespace(), patch, null, null, FIELD_MANAGER, force, null));
         } else {
-            port.setContainerPort(autoCD.getContainerPort());
+            deleteIngress(ingress);
         }
 
-        port.setName("http");
-        return port;
+        cleanupPVC(nameSpace.getMetadata().getName(), manifests.getOwner(), claims);
     }
 
-    private V1PersistentVolumeClaimSpec getV1PersistentVolumeClaimSpec(@NotNull Volume vol) {
-        return new V1PersistentVolumeClaimSpecBuilder()
-                .withAccessModes("ReadWriteOnce")
-                .withResources(new V1ResourceRequirementsBuilder()
-                        .withRequests(Map.of("storage", new Quantity(vol.getVolumeSize())))
-                        .build())
-                .withStorageClassName(environment.getStorageClass())
-                .build();
-    }
-
-
-    @SuppressWarnings("DuplicatedCode")
-    private void deploy(AutoCD autoCD) {
-        var ingress = getIngress(autoCD);
-        deleteIngress(ingress);
-        var service = getService(autoCD);
-        deleteService(service);
-        var claims = getPersistentVolumeClaims(autoCD);
-        var pvs = protectPVS(autoCD, claims);
-        log.info(pvs.toString());
-        unprotectPVS(autoCD);
-        var deployment = getDeployment(autoCD);
-        deleteDeployment(deployment);
-        deleteClaims(claims);
-        var nameSpace = getNamespace();
-        cleanupPVC(nameSpace.getMetadata().getName(), claims);
-
-        createNamespace(nameSpace);
+    /**
+     * Reads the live version of an object and creates it if it is missing. If it exists and has a different fingerprint,
+     * the generated object is sent as a server side apply patch. Clusters that do not support server side apply yet get
+     * a strategic merge patch instead.
+     *
+     * @param desired the generated object
+     * @param type    class of the object, needed to parse the patch response
+     * @param name    name used for logging
+     * @param read    reads the live object
+     * @param create  creates the object if it does not exist yet
+     * @param patch   builds the patch call for a given patch body and force flag
+     * @param <T>     Any Kubernetes Object
+     */
+    private <T extends KubernetesObject> void apply(@NotNull T desired, Class<T> type, String name, ReadCall<T> read, Consumer<T> create, PatchCall patch) {
+        T live;
+        try {
+            live = read.read();
+        } catch (ApiException e) {
+            if (e.getCode() != 404) {
+                log.error("Could not read " + name, e);
+                return;
+            }
 
-        if (environment.needsSecret()) {
-            addSecret();
+            log.info("Creating " + name);
+            create.accept(desired);
+            return;
         }
 
-        createClaims(claims);
-        createDeployment(deployment);
-        createService(service);
+        var liveAnnotations = live.getMetadata().getAnnotations();
+        if (liveAnnotations != null && desired.getMetadata().getAnnotations().get(ManifestRenderer.FINGERPRINT).equals(liveAnnotations.get(ManifestRenderer.FINGERPRINT))) {
+            log.info("Skipping " + name + ", fingerprint unchanged");
+            return;
+        }
 
-        reclaimPVS(pvs);
+        log.info("Patching " + name);
+        var json = api.getApiClient().getJSON();
+        var body = new V1Patch(json.serialize(desired));
+        try {
+            PatchUtils.patch(type, () -> patch.build(body, true), V1Patch.PATCH_FORMAT_APPLY_YAML, api.getApiClient());
+        } catch (ApiException e) {
+            if (e.getCode() != 415) {
+                log.error("Could not patch " + name, e);
+                return;
+            }
 
-        if (autoCD.isPubliclyAccessible()) {
-            createIngress(ingress);
+            // force is only allowed for apply patches, the API server rejects it for every other patch type
+            try {
+                PatchUtils.patch(type, () -> patch.build(body, null), V1Patch.PATCH_FORMAT_STRATEGIC_MERGE_PATCH, api.getApiClient());
+            } catch (ApiException ex) {
+                log.error("Could not patch " + name, ex);
+            }
         }
     }
 
     /**
      * Adds the image pull secret to the namespace
+     *
+     * @param manifests the rendered manifests of the configuration
      */
-    private void addSecret() {
+    private void addSecret(Manifests manifests) {
         var secret = new V1SecretBuilder().addToStringData(".dockerconfigjson", dockerCredentials)
                 .withKind("Secret")
-                .withMetadata(getNamedNamespacedMeta("gitlab-bot"))
+                .withMetadata(new V1ObjectMetaBuilder().withName("gitlab-bot").withNamespace(manifests.getNamespaceName()).build())
                 .withType("kubernetes.io/dockerconfigjson")
-                .withApiVersion(getApiVersionV1())
+                .withApiVersion("v1")
                 .build();
 
         try {
@@ -302,17 +432,37 @@ public class K8sClient {
             api.deleteNamespacedPersistentVolumeClaim(claim.getMetadata().getName(), claim.getMetadata().getNamespace(), null, null, null, null, FOREGROUND, null);
             log.info("Deleted claim: " + claim.getMetadata().getName());
         } catch (ApiException e) {
-            retry(claim, this::applyDeleteClaim, e);
+            retry(claim, this::applyDeleteClaim, e, () -> readClaim(claim));
         } catch (JsonSyntaxException e) {
             ignoreGoogleParsingError(e);
         }
     }
 
+    private V1PersistentVolumeClaim readClaim(@NotNull V1PersistentVolumeClaim claim) throws ApiException {
+        return api.readNamespacedPersistentVolumeClaim(claim.getMetadata().getName(), claim.getMetadata().getNamespace(), null, null, null);
+    }
+
+    private V1Deployment readDeployment(@NotNull V1Deployment deployment) throws ApiException {
+        return getAppsV1ApiClient().readNamespacedDeployment(deployment.getMetadata().getName(), deployment.getMetadata().getNamespace(), null, null, null);
+    }
+
+    private V1StatefulSet readStatefulSet(@NotNull V1StatefulSet set) throws ApiException {
+        return getAppsV1ApiClient().readNamespacedStatefulSet(set.getMetadata().getName(), set.getMetadata().getNamespace(), null, null, null);
+    }
+
+    private V1Service readService(@NotNull V1Service service) throws ApiException {
+        return api.readNamespacedService(service.getMetadata().getName(), service.getMetadata().getNamespace(), null, null, null);
+    }
+
+    private NetworkingV1beta1Ingress readIngress(@NotNull NetworkingV1beta1Ingress ingress) throws ApiException {
+        return getNetworkingV1beta1Api().readNamespacedIngress(ingress.getMetadata().getName(), ingress.getMetadata().getNamespace(), null, null, null);
+    }
+
     private void applyClaim(V1PersistentVolumeClaim claim) {
         try {
             api.createNamespacedPersistentVolumeClaim(claim.getMetadata().getNamespace(), claim, null, null, null);
         } catch (ApiException e) {
-            retry(claim, this::applyClaim, e);
+            retry(claim, this::applyClaim, e, () -> readClaim(claim));
         } catch (JsonSyntaxException e) {
             ignoreGoogleParsingError(e);
         }
@@ -378,7 +528,7 @@ public class K8sClient {
         pvs.forEach(pv -> {
             V1Patch reclaimPatch = new V1Patch("[{\"op\":\"remove\",\"path\":\"/spec/claimRef\"}]");
             try {
-                patchApi.patchPersistentVolume(pv, reclaimPatch, null, null, null, null);
+                patchPersistentVolume(pv, reclaimPatch);
             } catch (ApiException e) {
                 log.error("Could not reclaim PV", e);
                 throw new IllegalStateException(e);
@@ -389,28 +539,34 @@ public class K8sClient {
     /**
      * This method removes the "Retain" protection that was added earlier if the volume has been set to:
      * retainVolume = false
+     * Only volumes bound to claims in this namespace that carry the owner label of the configuration are touched, and
+     * only if their policy isn't "Delete" already, so the volumes of other services deploying into the same namespace
+     * are left alone. Claims protected by any image during this run are skipped.
      *
-     * @param autoCD configuration
+     * @param manifests the rendered manifests of the configuration
+     * @param autoCD    configuration
      */
-    private void unprotectPVS(AutoCD autoCD) {
-        V1PersistentVolumeList pvs;
-        try {
-            pvs = api.listPersistentVolume(null, null, null, null, null, null, null, null, null);
-            List<String> namesToProtect = getNamesToProtect(autoCD);
+    private void unprotectPVS(Manifests manifests, AutoCD autoCD) {
+        var namespace = manifests.getNamespaceName();
+        List<String> namesToProtect = getNamesToProtect(autoCD);
+        V1Patch deletePatch = new V1Patch("[{\"op\":\"replace\",\"path\":\"/spec/persistentVolumeReclaimPolicy\",\"value\":\"Delete\"}]");
 
-            pvs.getItems().forEach(pv -> {
-                if (pv.getSpec() != null && pv.getSpec().getClaimRef() != null) {
-                    var name = pv.getSpec().getClaimRef().getName();
-                    if (namesToProtect.contains(name)) {
+        try {
+            var ownedClaims = listOwnedClaims(namespace, manifests.getOwner())
+                    .stream()
+                    .map(it -> it.getMetadata().getName())
+                    .collect(Collectors.toSet());
+            synchronized (pvIndex) {
+                pvIndex.getByNamespace(namespace).forEach((name, pvs) -> {
+                    if (!ownedClaims.contains(name) || namesToProtect.contains(name) || pvIndex.isProtected(namespace, name)) {
                         return;
                     }
 
-                    V1Patch deletePatch = new V1Patch("[{\"op\":\"replace\",\"path\":\"/spec/persistentVolumeReclaimPolicy\",\"value\":\"Delete\"}]");
-
-                    applyPatchToPVS(pv, deletePatch);
-                }
-            });
-
+                    pvs.stream()
+                            .filter(pv -> !RECLAIM_DELETE.equals(pv.getSpec().getPersistentVolumeReclaimPolicy()))
+                            .forEach(pv -> pvIndex.update(applyPatchToPVS(pv, deletePatch)));
+                });
+            }
         } catch (ApiException e) {
             log.error("Could not perform PV protection: ", e);
         }
@@ -421,58 +577,64 @@ public class K8sClient {
         return autoCD.getVolumes()
                 .stream()
                 .filter(Volume::isRetainVolume)
-                .map(it -> getPVCName(it, autoCD))
+                .map(it -> renderer.getPVCName(it, autoCD))
                 .collect(Collectors.toList());
     }
 
-    private void applyPatchToPVS(@NotNull V1PersistentVolume pv, V1Patch patch) {
+    private V1PersistentVolume applyPatchToPVS(@NotNull V1PersistentVolume pv, V1Patch patch) {
         try {
-            patchApi.patchPersistentVolume(pv.getMetadata().getName(), patch, null, null, null, null);
+            return patchPersistentVolume(pv.getMetadata().getName(), patch);
         } catch (ApiException e) {
             log.error("Could not patch PV", e);
             throw new IllegalStateException(e);
+        } catch (JsonSyntaxException e) {
+            ignoreGoogleParsingError(e);
+            return null;
         }
     }
 
+    private V1PersistentVolume patchPersistentVolume(String name, V1Patch patch) throws ApiException {
+        return PatchUtils.patch(V1PersistentVolume.class,
+                () -> api.patchPersistentVolumeCall(name, patch, null, null, null, null, null),
+                V1Patch.PATCH_FORMAT_JSON_PATCH, kubeApi.getClient());
+    }
+
     /**
      * This methods adds the "Retain" policy to all volumes that have been configured via autoCD to retain their data.
      * This is done so k8s doesn't propagate the deletion of the deployment to these Persistent Volumes. It also hardwires
      * the name of the PersistentVolume into the PersistentVolumeClaim so it will try and grab the old one and not provision
      * a new one
      *
-     * @param autoCD configuration
-     * @param claims all pvc's generated from the autoCD
+     * @param manifests the rendered manifests of the configuration
+     * @param autoCD    configuration
+     * @param claims    copies of the rendered claims, they get the name of the retained volume
      * @return the names of the Protected volumes to process later on
      */
     @NotNull
-    private List<String> protectPVS(AutoCD autoCD, List<V1PersistentVolumeClaim> claims) {
-        V1PersistentVolumeList pvs;
+    private List<String> protectPVS(Manifests manifests, AutoCD autoCD, List<V1PersistentVolumeClaim> claims) {
+        var namespace = manifests.getNamespaceName();
         var strings = new ArrayList<String>();
-        try {
-            pvs = api.listPersistentVolume(null, null, null, null, null, null, null, null, null);
-            List<String> namesToProtect = getNamesToProtect(autoCD);
+        V1Patch retainPatch = new V1Patch("[{\"op\":\"replace\",\"path\":\"/spec/persistentVolumeReclaimPolicy\",\"value\":\"Retain\"}]");
 
-            pvs.getItems().forEach(pv -> {
-                if (pv.getSpec() != null && pv.getSpec().getClaimRef() != null) {
-                    var name = pv.getSpec().getClaimRef().getName();
-                    if (!namesToProtect.contains(name)) {
-                        return;
-                    }
-
-                    strings.add(pv.getMetadata().getName());
+        try {
+            synchronized (pvIndex) {
+                for (var name : getNamesToProtect(autoCD)) {
+                    pvIndex.markProtected(namespace, name);
 
-                    V1Patch retainPatch = new V1Patch("[{\"op\":\"replace\",\"path\":\"/spec/persistentVolumeReclaimPolicy\",\"value\":\"Retain\"}]");
+                    for (var pv : pvIndex.getByClaim(namespace, name)) {
+                        strings.add(pv.getMetadata().getName());
 
-                    applyPatchToPVS(pv, retainPatch);
+                        if (!RECLAIM_RETAIN.equals(pv.getSpec().getPersistentVolumeReclaimPolicy())) {
+                            pvIndex.update(applyPatchToPVS(pv, retainPatch));
+                        }
 
-                    claims.stream().filter(it -> it.getMetadata().getName().equals(name)).forEach(it -> {
-                        var spec = it.getSpec();
-                        spec.setVolumeName(pv.getMetadata().getName());
-                    });
+                        claims.stream().filter(it -> it.getMetadata().getName().equals(name)).forEach(it -> {
+                            var spec = it.getSpec();
+                            spec.setVolumeName(pv.getMetadata().getName());
+                        });
+                    }
                 }
-
-            });
-
+            }
         } catch (ApiException e) {
             log.error("Could not perform PV protection: ", e);
         }
@@ -480,16 +642,31 @@ public class K8sClient {
         return strings;
     }
 
+    /**
+     * @param claims rendered claims
+     * @return deep copies of the claims that can be changed without affecting the rendered manifests
+     */
+    @NotNull
+    private List<V1PersistentVolumeClaim> copyClaims(@NotNull List<V1PersistentVolumeClaim> claims) {
+        var json = api.getApiClient().getJSON();
+        return claims.stream()
+                .map(claim -> json.<V1PersistentVolumeClaim>deserialize(json.serialize(claim), V1PersistentVolumeClaim.class))
+                .collect(Collectors.toList());
+    }
+
     /**
      * This method clears any "dangling" persistent volume claims that are not bound to any pod, this may occur if
-     * the user deletes a volume from the configuration and therefore it can no longer be found since the name is unknown
+     * the user deletes a volume from the configuration and therefore it can no longer be found since the name is unknown.
+     * Only claims carrying the owner label of the configuration are considered, other services deploying into the same
+     * namespace at the same time may have created claims that no pod mounts yet.
      *
      * @param namespace The namespace
+     * @param owner     value of the owner label of the configuration
      * @param claims    all claims to filter the correct ones
      */
-    private void cleanupPVC(String namespace, List<V1PersistentVolumeClaim> claims) {
+    private void cleanupPVC(String namespace, String owner, List<V1PersistentVolumeClaim> claims) {
         try {
-            var pvcs = api.listNamespacedPersistentVolumeClaim(namespace, "true", null, null, null, null, null, null, null, null);
+            var pvcs = listOwnedClaims(namespace, owner);
             var pods = api.listNamespacedPod(namespace, "true", null, null, null, null, null, null, null, null);
             var validPVCNames = pods.getItems()
                     .stream()
@@ -499,7 +676,7 @@ public class K8sClient {
                     .map(V1Volume::getName)
                     .collect(Collectors.toList());
 
-            pvcs.getItems().stream()
+            pvcs.stream()
                     .filter(it -> !validPVCNames.contains(it.getMetadata().getName()))
                     .filter(it -> claims.stream().noneMatch(claim -> claim.getMetadata().getName().equals(it.getMetadata().getName())))
                     .forEach(this::applyDeleteClaim);
@@ -509,42 +686,44 @@ public class K8sClient {
         }
     }
 
+    @NotNull
+    private List<V1PersistentVolumeClaim> listOwnedClaims(String namespace, String owner) throws ApiException {
+        return api.listNamespacedPersistentVolumeClaim(namespace, "true", null, null, null, ManifestRenderer.OWNER + "=" + owner, null, null, null, null)
+                .getItems();
+    }
+
     private void createIngress(NetworkingV1beta1Ingress ingress) {
         var extensionsV1beta1Api = getNetworkingV1beta1Api();
         try {
-            extensionsV1beta1Api.createNamespacedIngress(ingress.getMetadata().getNamespace(), ingress, "true", null, null);
+            extensionsV1beta1Api.createNamespacedIngress(ingress.getMetadata().getNamespace(), ingress, "true", null, FIELD_MANAGER);
         } catch (ApiException e) {
-            retry(ingress, this::createIngress, e);
+            retry(ingress, this::createIngress, e, () -> readIngress(ingress));
         }
     }
 
     private NetworkingV1beta1Api getNetworkingV1beta1Api() {
-        var extensionsV1beta1Api = new NetworkingV1beta1Api();
-        extensionsV1beta1Api.setApiClient(api.getApiClient());
-        return extensionsV1beta1Api;
+        return kubeApi.getNetworkingV1beta1Api();
     }
 
     @NotNull
     private ExtensionsV1beta1Api getExtensionsV1beta1Api() {
-        var extensionsV1beta1Api = new ExtensionsV1beta1Api();
-        extensionsV1beta1Api.setApiClient(api.getApiClient());
-        return extensionsV1beta1Api;
+        return kubeApi.getExtensionsV1beta1Api();
     }
 
     private void createService(V1Service service) {
         try {
-            api.createNamespacedService(service.getMetadata().getNamespace(), service, "true", null, null);
+            api.createNamespacedService(service.getMetadata().getNamespace(), service, "true", null, FIELD_MANAGER);
         } catch (ApiException e) {
-            retry(service, this::createService, e);
+            retry(service, this::createService, e, () -> readService(service));
         }
     }
 
     private void createDeployment(V1Deployment deployment) {
         var extensionsV1beta1Api = getAppsV1ApiClient();
         try {
-            extensionsV1beta1Api.createNamespacedDeployment(deployment.getMetadata().getNamespace(), deployment, "true", null, null);
+            extensionsV1beta1Api.createNamespacedDeployment(deployment.getMetadata().getNamespace(), deployment, "true", null, FIELD_MANAGER);
         } catch (ApiException e) {
-            retry(deployment, this::createDeployment, e);
+            retry(deployment, this::createDeployment, e, () -> readDeployment(deployment));
         }
     }
 
@@ -552,372 +731,207 @@ public class K8sClient {
         try {
             api.createNamespace(nameSpace, "true", null, null);
         } catch (ApiException e) {
-            retry(nameSpace, this::createNamespace, e);
+            retry(nameSpace, this::createNamespace, e, () -> api.readNamespace(nameSpace.getMetadata().getName(), null, null, null));
         }
 
 
     }
 
-    @NotNull
-    private String getPVCName(Volume volume, @NotNull AutoCD autoCD) {
-        var str = getNamespaceString() + "-" + getName() + "-" + autoCD.getIdentifierRegistryImagePath() + "-" + autoCD.getVolumes().indexOf(volume) + "-claim";
-        return hash(str).substring(0, 20);
-    }
 
-    @NotNull
-    private String getVolumeName(Volume volume, @NotNull AutoCD autoCD) {
-        return getPVCName(volume, autoCD);
-    }
+    /**
+     * Removes everything that was deployed for the given configuration. All objects carrying the owner label of the
+     * configuration are deleted in bulk, one call per kind, and all calls run concurrently. Afterwards it waits once
+     * until none of the owned objects are left.
+     *
+     * @param autoCD configuration
+     */
+    public void removeDeploymentFromK8s(AutoCD autoCD) {
+        var manifests = renderer.render(autoCD);
+        var namespace = manifests.getNamespaceName();
+        var selector = ManifestRenderer.OWNER + "=" + manifests.getOwner();
+        var appsV1Api = getAppsV1ApiClient();
+        var networkingV1beta1Api = getNetworkingV1beta1Api();
 
-    private List<V1PersistentVolumeClaim> getPersistentVolumeClaims(@NotNull AutoCD autoCD) {
-        return autoCD.getVolumes().stream().map(volume -> {
-            var pvc = new V1PersistentVolumeClaim();
-            pvc.setKind("PersistentVolumeClaim");
-            var meta = getNamespacedMeta();
-            meta.setName(getPVCName(volume, autoCD));
-            pvc.setMetadata(meta);
-            V1PersistentVolumeClaimSpec spec = getV1PersistentVolumeClaimSpec(volume);
+        runConcurrently(List.of(
+                () -> deleteCollection("ingresses", () -> networkingV1beta1Api.deleteCollectionNamespacedIngress(namespace, null, null, null, null, null, selector, null, null, FOREGROUND, null, null, null)),
+                () -> deleteCollection("deployments", () -> appsV1Api.deleteCollectionNamespacedDeployment(namespace, null, null, null, null, null, selector, null, null, FOREGROUND, null, null, null)),
+                () -> deleteCollection("statefulsets", () -> appsV1Api.deleteCollectionNamespacedStatefulSet(namespace, null, null, null, null, null, selector, null, null, FOREGROUND, null, null, null)),
+                () -> deleteCollection("claims", () -> api.deleteCollectionNamespacedPersistentVolumeClaim(namespace, null, null, null, null, null, selector, null, null, FOREGROUND, null, null, null)),
+                () -> deleteOwnedServices(namespace, selector),
+                // objects deployed before the owner label was introduced can only be found by name
+                () -> removeDeploymentByName(manifests)
+        ));
 
-            pvc.setSpec(spec);
+        var removed = awaitCondition("Removed owned objects", () ->
+                networkingV1beta1Api.listNamespacedIngress(namespace, null, null, null, null, selector, 1, null, null, null).getItems().isEmpty()
+                        && appsV1Api.listNamespacedDeployment(namespace, null, null, null, null, selector, 1, null, null, null).getItems().isEmpty()
+                        && appsV1Api.listNamespacedStatefulSet(namespace, null, null, null, null, selector, 1, null, null, null).getItems().isEmpty()
+                        && api.listNamespacedPersistentVolumeClaim(namespace, null, null, null, null, selector, 1, null, null, null).getItems().isEmpty()
+                        && api.listNamespacedService(namespace, null, null, null, null, selector, 1, null, null, null).getItems().isEmpty());
 
-            return pvc;
-        }).collect(Collectors.toList());
+        if (!removed) {
+            log.error("Owned objects were not removed within " + DELETION_TIMEOUT_MS + " ms");
+        }
     }
 
-    @NotNull
-    private NetworkingV1beta1Ingress getIngress(@NotNull AutoCD autoCD) {
-        var ingress = new NetworkingV1beta1Ingress();
-        ingress.setKind("Ingress");
-        var meta = getNamespacedMeta();
-        meta.setName(Util.hash(getNamespaceString() + "-" + getName() + "-ingress" + autoCD.getIdentifierRegistryImagePath()).substring(0, 20));
+    // this code is duplicated because of our checkstyle configuration...
+    @SuppressWarnings("DuplicatedCode")
+    private void removeDeploymentByName(Manifests manifests) {
+        deleteIngress(manifests.getIngress());
+        deleteService(manifests.getService());
+        deleteDeployment(manifests.getDeployment());
+        deleteClaims(manifests.getClaims());
+    }
 
-        var extensionsV1beta1Api = getNetworkingV1beta1Api();
+    private void deleteCollection(String name, @NotNull DeleteCall call) {
         try {
-            var ingresses = extensionsV1beta1Api.listIngressForAllNamespaces(null, null, null, null, null, null, null, null, null);
-            var ingressWithHostAlreadyPresent = ingresses.getItems()
-                    .stream()
-                    .filter(it -> !it.getMetadata().getNamespace().equals(meta.getNamespace()))
-                    .anyMatch(it ->
-                            it.getSpec().getRules().stream()
-                                    .anyMatch(rule -> rule.getHost().equals(autoCD.getSubdomain())));
-
-            if (ingressWithHostAlreadyPresent) {
-                throw new IllegalStateException("There is already an ingress with host: " + autoCD.getSubdomain() + " present");
-            }
-
+            call.delete();
         } catch (ApiException e) {
-            log.error("Could not get Ingresses for all namespaces", e);
-        }
-
-        var spec = new NetworkingV1beta1IngressSpecBuilder()
-                .withRules(new NetworkingV1beta1IngressRuleBuilder()
-                        .withHost(autoCD.getSubdomain())
-                        .withHttp(new NetworkingV1beta1HTTPIngressRuleValueBuilder()
-                                .withPaths(new NetworkingV1beta1HTTPIngressPathBuilder().withPath("/")
-                                        .withBackend(new NetworkingV1beta1IngressBackendBuilder()
-                                                .withServiceName(getServiceName(autoCD))
-                                                .withServicePort(new IntOrString(autoCD.getServicePort()))
-                                                .build())
-                                        .build())
-                                .build())
-                        .build())
-                .build();
-
-        ingress.setSpec(spec);
-        ingress.setMetadata(meta);
-
-        return ingress;
-    }
-
-
-    private String getCleanServiceNameLabel(AutoCD autoCD) {
-        var unclean = getServiceNameLabel(autoCD);
-        var clean = unclean.replaceAll("/", "-").replaceAll(":", "");
-        if (clean.startsWith("-")) {
-            clean = clean.substring(1);
+            checkApiError(e, name);
+        } catch (JsonSyntaxException e) {
+            ignoreGoogleParsingError(e);
         }
-
-        return clean;
     }
 
-    private String getServiceNameLabel(AutoCD autoCD) {
-        if (autoCD.getServiceName() != null) {
-            return autoCD.getServiceName();
-        }
-
-        if (autoCD.getRegistryImagePath() != null) {
-            return autoCD.getRegistryImagePath().replaceAll("registry\\.worldiety\\.net", "");
+    /**
+     * Services don't support deleting a collection, so they are listed by label and deleted one by one.
+     *
+     * @param namespace the namespace
+     * @param selector  owner label selector
+     */
+    private void deleteOwnedServices(String namespace, String selector) {
+        try {
+            api.listNamespacedService(namespace, null, null, null, null, selector, null, null, null, null)
+                    .getItems()
+                    .forEach(this::deleteService);
+        } catch (ApiException e) {
+            log.error("Could not list services", e);
         }
-
-        return environment.getProjectName();
     }
 
-    @NotNull
-    private String getServiceName(@NotNull AutoCD autoCD) {
-        if (autoCD.getServiceName() != null) {
-            return autoCD.getServiceName();
+    private void runConcurrently(@NotNull List<Runnable> tasks) {
+        var executor = Executors.newFixedThreadPool(tasks.size());
+        try {
+            CompletableFuture.allOf(tasks.stream()
+                    .map(task -> CompletableFuture.runAsync(task, executor))
+                    .toArray(CompletableFuture[]::new)).join();
+        } finally {
+            executor.shutdown();
         }
-
-        return "service-" + Util.hash(getNamespaceString() + "-" + getName() + "-service").substring(0, 20);
-    }
-
-    @NotNull
-    private V1Service getService(@NotNull AutoCD autoCD) {
-        var service = new V1Service();
-        service.setKind("Service");
-        var meta = getNamespacedMeta();
-        meta.setName(getServiceName(autoCD));
-        var spec = new V1ServiceSpec();
-        spec.setSelector(Map.of("k8s-app", getK8sApp(autoCD)));
-        var port = new V1ServicePort();
-        port.setName("web");
-        port.setPort(autoCD.getServicePort());
-        port.setTargetPort(new IntOrString(autoCD.getContainerPort()));
-        spec.setPorts(List.of(port));
-
-        service.setSpec(spec);
-        service.setMetadata(meta);
-
-        return service;
     }
 
-    @NotNull
-    private V1Deployment getDeployment(@NotNull AutoCD autoCD) {
-        var meta = getNamespacedMeta();
-        var projName = environment.getProjectName();
-        meta.setName(Util.hash(getNamespaceString() + autoCD.getIdentifierRegistryImagePath() + projName));
-        var labels = Map.of("k8s-app", getK8sApp(autoCD));
-        meta.setLabels(labels);
-
-        var spec = new V1DeploymentSpec();
-        spec.setReplicas(autoCD.getReplicas());
-        var select = new V1LabelSelector();
-        select.setMatchLabels(labels);
-        spec.setSelector(select);
-
-        var template = new V1PodTemplateSpec();
-        spec.setTemplate(template);
-        var templateMeta = new V1ObjectMeta();
-        template.setMetadata(templateMeta);
-
-        templateMeta.setLabels(Map.of(
-                "k8s-app", getK8sApp(autoCD),
-                "name", getName(),
-                "serviceName", getCleanServiceNameLabel(autoCD)));
-        template.setMetadata(templateMeta);
-
-        var podSpec = new V1PodSpec();
-        template.setSpec(podSpec);
-
-        podSpec.setTerminationGracePeriodSeconds(autoCD.getTerminationGracePeriod());
-
-        if (!autoCD.getVolumes().isEmpty()) {
-            podSpec.setVolumes(autoCD.getVolumes().stream().map(volume -> {
-                var vol = new V1Volume();
-                vol.setName(getPVCName(volume, autoCD));
-                var source = new V1PersistentVolumeClaimVolumeSource();
-                source.setClaimName(getPVCName(volume, autoCD));
-                vol.setPersistentVolumeClaim(source);
-                return vol;
-            }).collect(Collectors.toList()));
-        }
-
-        V1ContainerBuilder containerBuilder = getV1ContainerBuilder(autoCD);
-
-        var neededInitContainer = new ArrayList<V1Container>();
-        if (!autoCD.getVolumes().isEmpty()) {
-            var volumes = autoCD.getVolumes().stream().map(volume -> {
-                var vol = new V1VolumeMount();
-                vol.setName(getPVCName(volume, autoCD));
-                vol.setMountPath(volume.getVolumeMount());
-
-                if (volume.getFolderPermission() != null) {
-                    neededInitContainer.add(getVolumePermissionConditioner(volume.getFolderPermission(), vol));
+    /**
+     * This method will retry a given function if the resource is still in the "Terminating" phase. We need to catch this exception
+     * because the parsing of JSON responses is buggy: https://github.com/kubernetes-client/java/issues/86
+     *
+     * @param obj      The object that will be passed to the function
+     * @param function the function that will be applied once the old object is gone
+     * @param e        the caught exception
+     * @param read     reads the live object, used to wait for its deletion
+     * @param <T>      Any Kubernetes Object
+     */
+    private <T> void retry(T obj, @NotNull Consumer<T> function, @NotNull ApiException e, ReadCall<?> read) {
+        if (e.getMessage().equals("Conflict")) {
+            var resp = new Gson().fromJson(e.getResponseBody(), KubeStatusResponse.class);
+            if (resp.getMessage().startsWith("object is being deleted")) {
+                log.info("Object is still being deleted, waiting...");
+                if (awaitDeletion(read)) {
+                    function.accept(obj);
+                } else {
+                    log.error("Object was not deleted within " + DELETION_TIMEOUT_MS + " ms");
                 }
-
-                return vol;
-            }).collect(Collectors.toList());
-
-            if (!neededInitContainer.isEmpty()) {
-                podSpec.setInitContainers(neededInitContainer);
+                return;
             }
 
-            containerBuilder = containerBuilder.withVolumeMounts(volumes);
-        }
-
-        var container = containerBuilder.build();
-
-        podSpec.setContainers(List.of(container));
-
-        if (environment.needsSecret()) {
-            var secret = new V1LocalObjectReference();
-            secret.setName("gitlab-bot");
-            podSpec.setImagePullSecrets(List.of(secret));
-        }
-
-        var dep = new V1Deployment();
-        dep.setMetadata(meta);
-        dep.setSpec(spec);
-        dep.setKind("Deployment");
-        dep.setApiVersion(getApiVersionAppsV1());
-        return dep;
-    }
-
-    private V1ContainerBuilder getV1ContainerBuilder(@NotNull AutoCD autoCD) {
-        V1ContainerPort port = getV1ContainerPort(autoCD);
-
-        List<V1EnvVar> variables = new ArrayList<>();
-        if (autoCD.getEnvironmentVariables() != null) {
-            var type = autoCD.getEnvironmentVariables().get(rawBuildType);
-            if (type != null) {
-                variables = type.entrySet()
-                        .stream()
-                        .map(entry -> new V1EnvVarBuilder().withName(entry.getKey()).withValue(entry.getValue()).build())
-                        .collect(Collectors.toList());
+            if (resp.getMessage().contains("already exists")) {
+                return;
             }
         }
 
-        return new V1ContainerBuilder()
-                .withImage(autoCD.getRegistryImagePath())
-                .withName(getName() + "-c")
-                .withPorts(port)
-                .withEnv(variables)
-                .withArgs(autoCD.getArgs())
-                .withImagePullPolicy("Always");
-    }
-
-    @NotNull
-    private String getK8sApp(@NotNull AutoCD autoCD) {
-        return Util.hash(getNamespaceString() + "-" + getName() + "-" + Util.hash(autoCD.getIdentifierRegistryImagePath())).substring(0, 20) + hyphenedBuildType;
+        log.error("Unknown error", e);
+        log.info(e.getResponseBody());
     }
 
     /**
-     * This method returns an init container that may be required to set the read/write/execute flags (as numbers) on
-     * a mount. This may be required for redis or mysql for example because those containers run as USER and the volumes
-     * only have read/write/execute as ROOT. This is needed because the DigitalOcean Spec doesn't implement setting these
-     * via configuration as per the docs: https://www.digitalocean.com/docs/kubernetes/how-to/add-volumes/#setting-permissions-on-volumes
+     * Polls the object until it is gone.
      *
-     * @param perm Unix Permissions
-     * @param vol  the volumeMount to condition
-     * @return the initContainer used to condition the Volume
+     * @param read reads the live object
+     * @return true if the object is gone, false if the timeout was hit
      */
-    private V1Container getVolumePermissionConditioner(String perm, @NotNull V1VolumeMount vol) {
-        return new V1ContainerBuilder()
-                .withImage("busybox")
-                .withName("busybox" + "-c")
-                .withCommand("/bin/chmod", "-R", perm, "/data")
-                .withVolumeMounts(new V1VolumeMountBuilder()
-                        .withName(vol.getName())
-                        .withMountPath("/data")
-                        .build()
-                ).build();
-    }
-
-    @NotNull
-    @Contract(pure = true)
-    private String getApiVersionExtensionV1Beta1() {
-        return "extensions/v1beta1";
-    }
-
-    @NotNull
-    @Contract(pure = true)
-    private String getApiVersionAppsV1() {
-        return "apps/v1";
-    }
+    private boolean awaitDeletion(@NotNull ReadCall<?> read) {
+        return awaitCondition("Object deleted", () -> {
+            try {
+                read.read();
+                return false;
+            } catch (ApiException e) {
+                if (e.getCode() == 404) {
+                    return true;
+                }
 
-    @NotNull
-    @Contract(pure = true)
-    private String getApiVersionV1() {
-        return "v1";
+                throw e;
+            }
+        });
     }
 
-    @NotNull
-    private String getName() {
-        if (isLocal(environment)) {
-            return "local-default-name";
-        }
-
-        return environment.getProjectName() + hyphenedBuildType;
-    }
+    /**
+     * Polls the condition until it is met. The polling interval starts small and doubles up to a cap, with some jitter
+     * so concurrent deploys don't hit the API in lockstep.
+     *
+     * @param name      name of the condition used for logging
+     * @param condition the condition to check
+     * @return true if the condition was met, false if the timeout was hit
+     */
+    private boolean awaitCondition(String name, @NotNull Condition condition) {
+        var start = System.currentTimeMillis();
+        var deadline = start + DELETION_TIMEOUT_MS;
+        var backoff = INITIAL_BACKOFF_MS;
 
-    @NotNull
-    private V1ObjectMeta getNamespacedMeta() {
-        var metadata = new V1ObjectMeta();
-        metadata.setNamespace(getNamespaceString());
-        return metadata;
-    }
+        while (true) {
+            try {
+                if (condition.test()) {
+                    log.info(name + " after " + (System.currentTimeMillis() - start) + " ms");
+                    return true;
+                }
+            } catch (ApiException e) {
+                log.warn("Could not check condition: " + name, e);
+            } catch (JsonSyntaxException e) {
+                ignoreGoogleParsingError(e);
+            }
 
-    private V1ObjectMeta getNamedNamespacedMeta(String name) {
-        var metadata = getNamespacedMeta();
-        metadata.setName(name);
-        return metadata;
-    }
+            var remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
 
-    @NotNull
-    private String getNamespaceString() {
-        var nameSpaceName = "local-default";
+            try {
+                Thread.sleep(Math.min(remaining, ThreadLocalRandom.current().nextLong(backoff / 2, backoff + 1)));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
 
-        if (!isLocal(environment)) {
-            nameSpaceName = environment.getProjectNamespace();
-            nameSpaceName = nameSpaceName.replaceAll("/", "-");
+            backoff = Math.min(backoff * 2, MAX_BACKOFF_MS);
         }
-
-        return nameSpaceName + hyphenedBuildType;
     }
 
-    @NotNull
-    private V1Namespace getNamespace() {
-        var ns = new V1Namespace();
-        var metadata = new V1ObjectMeta();
-        metadata.setName(getNamespaceString());
-
-        ns.setMetadata(metadata);
-        return ns;
+    @FunctionalInterface
+    private interface ReadCall<T> {
+        T read() throws ApiException;
     }
 
-    // this code is duplicated because of our checkstyle configuration...
-    @SuppressWarnings("DuplicatedCode")
-    public void removeDeploymentFromK8s(AutoCD autoCD) {
-        var ingress = getIngress(autoCD);
-        deleteIngress(ingress);
-        var service = getService(autoCD);
-        deleteService(service);
-        var deployment = getDeployment(autoCD);
-        deleteDeployment(deployment);
-        var claims = getPersistentVolumeClaims(autoCD);
-        deleteClaims(claims);
+    @FunctionalInterface
+    private interface Condition {
+        boolean test() throws ApiException;
     }
 
-    /**
-     * This method will retry a given function if the resource is still in the "Terminating" phase. We need to catch this exception
-     * because the parsing of JSON responses is buggy: https://github.com/kubernetes-client/java/issues/86
-     *
-     * @param obj      The object that will be passed to the function
-     * @param function the function that will be applied after sleeping
-     * @param e        the caught exception
-     * @param <T>      Any Kubernetes Object
-     */
-    private <T> void retry(T obj, @NotNull Consumer<T> function, @NotNull ApiException e) {
-        if (e.getMessage().equals("Conflict")) {
-            var resp = new Gson().fromJson(e.getResponseBody(), KubeStatusResponse.class);
-            if (resp.getMessage().startsWith("object is being deleted")) {
-                try {
-                    log.info("Object is still being deleted, retrying...");
-                    Thread.sleep(4000);
-                    function.accept(obj);
-                    return;
-                } catch (InterruptedException ex) {
-                    ex.printStackTrace();
-                }
-            }
-
-            if (resp.getMessage().contains("already exists")) {
-                return;
-            }
-        }
+    @FunctionalInterface
+    private interface DeleteCall {
+        Object delete() throws ApiException;
+    }
 
-        log.error("Unknown error", e);
-        log.info(e.getResponseBody());
+    @FunctionalInterface
+    private interface PatchCall {
+        Call build(V1Patch patch, Boolean force) throws ApiException;
     }
 }
 
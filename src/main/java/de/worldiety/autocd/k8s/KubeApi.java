@@ -0,0 +1,97 @@
+package de.worldiety.autocd.k8s;
+
+import de.worldiety.autocd.env.Environment;
+import io.kubernetes.client.openapi.ApiClient;
+import io.kubernetes.client.openapi.apis.AppsV1Api;
+import io.kubernetes.client.openapi.apis.CoreV1Api;
+import io.kubernetes.client.openapi.apis.ExtensionsV1beta1Api;
+import io.kubernetes.client.openapi.apis.NetworkingV1beta1Api;
+import io.kubernetes.client.util.Config;
+import okhttp3.ConnectionPool;
+import okhttp3.Protocol;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single entry point to the Kubernetes API for a run. All API groups share one {@link ApiClient} whose connections are
+ * kept alive and multiplexed over HTTP/2, so the kubeconfig is only parsed once and no call has to open a new
+ * connection. The patch format is chosen per request via {@link io.kubernetes.client.util.PatchUtils}, which is why a
+ * second client for patches is not needed.
+ */
+public class KubeApi {
+    private static final int MAX_IDLE_CONNECTIONS = 8;
+    private static final long KEEP_ALIVE_MINUTES = 5;
+    private static final long CONNECT_TIMEOUT_SECONDS = 10;
+    private static final long READ_TIMEOUT_SECONDS = 30;
+    private static final long WRITE_TIMEOUT_SECONDS = 30;
+    private final ApiClient client;
+    private final KubeApiMetrics metrics = new KubeApiMetrics();
+    private final CoreV1Api coreV1Api;
+    private final AppsV1Api appsV1Api;
+    private final NetworkingV1beta1Api networkingV1beta1Api;
+    private final ExtensionsV1beta1Api extensionsV1beta1Api;
+
+    public KubeApi(@NotNull ApiClient client) {
+        client.setHttpClient(client.getHttpClient()
+                .newBuilder()
+                .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
+                .protocols(List.of(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                .connectTimeout(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .readTimeout(READ_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .writeTimeout(WRITE_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .addInterceptor(metrics)
+                .build());
+
+        this.client = client;
+        this.coreV1Api = new CoreV1Api(client);
+        this.appsV1Api = new AppsV1Api(client);
+        this.networkingV1beta1Api = new NetworkingV1beta1Api(client);
+        this.extensionsV1beta1Api = new ExtensionsV1beta1Api(client);
+    }
+
+    /**
+     * Creates the client from the kubeconfig of the environment, or from its url, token and CA certificate if there is
+     * no kubeconfig.
+     *
+     * @param environment the CI environment
+     * @return the api
+     * @throws IOException if the kubeconfig could not be read
+     */
+    @NotNull
+    public static KubeApi fromEnvironment(@NotNull Environment environment) throws IOException {
+        var config = environment.getK8SConfig();
+        if (config.isPresent()) {
+            return new KubeApi(Config.fromConfig(config.get()));
+        }
+
+        return new KubeApi(Config.fromToken(environment.getK8SUrl(), environment.getK8SUserToken())
+                .setSslCaCert(environment.getK8SCACert()));
+    }
+
+    public ApiClient getClient() {
+        return client;
+    }
+
+    public KubeApiMetrics getMetrics() {
+        return metrics;
+    }
+
+    public CoreV1Api getCoreV1Api() {
+        return coreV1Api;
+    }
+
+    public AppsV1Api getAppsV1Api() {
+        return appsV1Api;
+    }
+
+    public NetworkingV1beta1Api getNetworkingV1beta1Api() {
+        return networkingV1beta1Api;
+    }
+
+    public ExtensionsV1beta1Api getExtensionsV1beta1Api() {
+        return extensionsV1beta1Api;
+    }
+}
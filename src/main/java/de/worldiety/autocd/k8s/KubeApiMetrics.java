@@ -0,0 +1,85 @@
+package de.worldiety.autocd.k8s;
+
+import okhttp3.Interceptor;
+import okhttp3.Response;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records latency and status of every call made to the Kubernetes API. Calls are grouped by http method and resource
+ * (e.g. "PATCH deployments") and can be logged as a summary at the end of a run.
+ */
+public class KubeApiMetrics implements Interceptor {
+    private static final Logger log = LoggerFactory.getLogger(KubeApiMetrics.class);
+    private final Map<String, CallStats> stats = new ConcurrentHashMap<>();
+
+    @NotNull
+    @Override
+    public Response intercept(@NotNull Chain chain) throws IOException {
+        var request = chain.request();
+        var key = request.method() + " " + getResource(request.url().pathSegments());
+        var start = System.nanoTime();
+        var status = -1;
+        try {
+            var response = chain.proceed(request);
+            status = response.code();
+            return response;
+        } finally {
+            var millis = (System.nanoTime() - start) / 1_000_000;
+            stats.computeIfAbsent(key, it -> new CallStats()).record(status, millis);
+            log.debug("{} {} -> {} in {} ms", request.method(), request.url().encodedPath(), status, millis);
+        }
+    }
+
+    /**
+     * Logs count, latency and status codes of all calls made so far
+     */
+    public void logSummary() {
+        new TreeMap<>(stats).forEach((key, it) -> log.info("{}: {} calls, avg {} ms, max {} ms, status {}",
+                key, it.count.sum(), it.totalMillis.sum() / Math.max(1, it.count.sum()), it.maxMillis.get(), it.statusCounts));
+    }
+
+    /**
+     * Extracts the resource from an API path, e.g. "deployments" from /apis/apps/v1/namespaces/ns/deployments/name
+     *
+     * @param segments path segments of the request
+     * @return the resource
+     */
+    @NotNull
+    private String getResource(@NotNull List<String> segments) {
+        if (segments.isEmpty()) {
+            return "unknown";
+        }
+
+        // /api/v1/... for the core group, /apis/group/version/... for everything else
+        var start = segments.get(0).equals("api") ? 2 : 3;
+        if (segments.size() > start + 2 && segments.get(start).equals("namespaces")) {
+            return segments.get(start + 2);
+        }
+
+        return segments.size() > start ? segments.get(start) : "unknown";
+    }
+
+    private static class CallStats {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalMillis = new LongAdder();
+        private final LongAccumulator maxMillis = new LongAccumulator(Math::max, 0);
+        private final Map<Integer, LongAdder> statusCounts = new ConcurrentHashMap<>();
+
+        private void record(int status, long millis) {
+            count.increment();
+            totalMillis.add(millis);
+            maxMillis.accumulate(millis);
+            statusCounts.computeIfAbsent(status, it -> new LongAdder()).increment();
+        }
+    }
+}
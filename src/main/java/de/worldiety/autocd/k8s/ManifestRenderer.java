@@ -0,0 +1,571 @@
+package de.worldiety.autocd.k8s;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import de.worldiety.autocd.env.Environment;
+import de.worldiety.autocd.persistence.AutoCD;
+import de.worldiety.autocd.persistence.Volume;
+import de.worldiety.autocd.util.Util;
+import io.kubernetes.client.common.KubernetesObject;
+import io.kubernetes.client.custom.IntOrString;
+import io.kubernetes.client.custom.Quantity;
+import io.kubernetes.client.openapi.JSON;
+import io.kubernetes.client.openapi.models.*;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static de.worldiety.autocd.util.Util.hash;
+import static de.worldiety.autocd.util.Util.isLocal;
+
+/**
+ * Turns a configuration into the Kubernetes objects that have to be deployed for it. Rendering only depends on the
+ * configuration and the environment and never talks to the cluster, so the same input always results in the same
+ * manifests. This makes it possible to render without cluster access, e.g. to write a plan to disk.
+ */
+public class ManifestRenderer {
+    private static final Logger log = LoggerFactory.getLogger(ManifestRenderer.class);
+    //Annotations used to detect whether an object has to be redeployed
+    static final String FINGERPRINT = "autocd/fingerprint";
+    static final String IMAGE_ID = "autocd/image-id";
+    //Label carried by every object deployed for a configuration, used for bulk removal
+    static final String OWNER = "autocd/owner";
+    private final Environment environment;
+    private final String hyphenedBuildType;
+    private final String rawBuildType;
+    private final JSON json = new JSON();
+
+    public ManifestRenderer(Environment environment, String buildType) {
+        this.environment = environment;
+        this.hyphenedBuildType = "-" + buildType;
+        this.rawBuildType = buildType;
+    }
+
+    /**
+     * Renders all objects of the given configuration
+     *
+     * @param autoCD configuration
+     * @return the rendered manifests
+     */
+    @NotNull
+    public Manifests render(@NotNull AutoCD autoCD) {
+        return new Manifests(
+                getK8sApp(autoCD),
+                isStateful(autoCD),
+                autoCD.isPubliclyAccessible(),
+                getNamespace(),
+                getDeployment(autoCD),
+                getStatefulSet(autoCD),
+                getService(autoCD),
+                getIngress(autoCD),
+                getPersistentVolumeClaims(autoCD)
+        );
+    }
+
+    /**
+     * Writes every object that would be deployed for the manifests to its own file in a sub directory named after the
+     * owner of the manifests. The json keys are sorted, so rendering the same configuration twice results in identical
+     * files that can be compared with diff.
+     *
+     * @param manifests the rendered manifests
+     * @param directory the plan directory
+     * @throws IOException if a file could not be written
+     */
+    public void write(@NotNull Manifests manifests, @NotNull Path directory) throws IOException {
+        var target = directory.resolve(manifests.getOwner());
+        Files.createDirectories(target);
+        var gson = json.getGson().newBuilder().setPrettyPrinting().create();
+
+        for (var entry : manifests.getObjects().entrySet()) {
+            var file = target.resolve(entry.getKey() + ".json");
+            Files.writeString(file, gson.toJson(sortKeys(gson.toJsonTree(entry.getValue()))) + "\n", StandardCharsets.UTF_8);
+            log.info("Wrote " + file);
+        }
+    }
+
+    static boolean isStateful(@NotNull AutoCD autoCD) {
+        return autoCD.getReplicas() > 1 && autoCD.getVolumes().size() != 0;
+    }
+
+    private V1StatefulSet getStatefulSet(AutoCD autoCD) {
+        var meta = getNamespacedMeta();
+        var projName = environment.getProjectName();
+        meta.setName(Util.hash(getNamespaceString() + autoCD.getIdentifierRegistryImagePath() + projName).substring(0, 20));
+        var labels = Map.of("k8s-app", getK8sApp(autoCD), "serviceName", getCleanServiceNameLabel(autoCD));
+        meta.setLabels(withOwnerLabel(labels, autoCD));
+
+        var spec = new V1StatefulSetSpec();
+        spec.setReplicas(autoCD.getReplicas());
+        var select = new V1LabelSelector();
+        select.setMatchLabels(labels);
+        spec.setSelector(select);
+
+        var template = new V1PodTemplateSpec();
+        spec.setTemplate(template);
+        var templateMeta = new V1ObjectMeta();
+        template.setMetadata(templateMeta);
+
+        templateMeta.setLabels(Map.of(
+                "k8s-app", getK8sApp(autoCD),
+                "name", getName(),
+                "serviceName", getCleanServiceNameLabel(autoCD)));
+        setImageIdAnnotation(templateMeta, autoCD);
+        template.setMetadata(templateMeta);
+
+        var podSpec = new V1PodSpec();
+        template.setSpec(podSpec);
+
+        podSpec.setTerminationGracePeriodSeconds(autoCD.getTerminationGracePeriod());
+
+        spec.setTemplate(template);
+
+        var templates = autoCD.getVolumes().stream().map(vol -> {
+            var volTemp = new V1PersistentVolumeClaim();
+            volTemp.setMetadata(new V1ObjectMetaBuilder().withName(getVolumeName(vol, autoCD)).build());
+            V1PersistentVolumeClaimSpec volumeClaimSpec = getV1PersistentVolumeClaimSpec(vol);
+            volTemp.setSpec(volumeClaimSpec);
+            return volTemp;
+        }).collect(Collectors.toList());
+
+        spec.setVolumeClaimTemplates(templates);
+
+        V1ContainerBuilder containerBuilder = getV1ContainerBuilder(autoCD);
+
+        var neededInitContainer = new ArrayList<V1Container>();
+        if (!autoCD.getVolumes().isEmpty()) {
+            var volumes = autoCD.getVolumes().stream().map(volume -> {
+                var vol = new V1VolumeMount();
+                vol.setName(getVolumeName(volume, autoCD));
+                vol.setMountPath(volume.getVolumeMount());
+
+                if (volume.getFolderPermission() != null) {
+                    neededInitContainer.add(getVolumePermissionConditioner(volume.getFolderPermission(), vol));
+                }
+
+                return vol;
+            }).collect(Collectors.toList());
+
+            if (!neededInitContainer.isEmpty()) {
+                podSpec.setInitContainers(neededInitContainer);
+            }
+
+            containerBuilder = containerBuilder.withVolumeMounts(volumes);
+        }
+
+        var container = containerBuilder.build();
+
+        podSpec.setContainers(List.of(container));
+
+        if (environment.needsSecret()) {
+            var secret = new V1LocalObjectReference();
+            secret.setName("gitlab-bot");
+            podSpec.setImagePullSecrets(List.of(secret));
+        }
+
+
+        var dep = new V1StatefulSet();
+        dep.setMetadata(meta);
+        dep.setSpec(spec);
+        dep.setKind("StatefulSet");
+        dep.setApiVersion(getApiVersionAppsV1());
+
+        return withFingerprint(dep);
+    }
+
+    @NotNull
+    private V1ContainerPort getV1ContainerPort(AutoCD autoCD) {
+        var port = new V1ContainerPort();
+
+        port.setContainerPort(autoCD.getContainerPort());
+
+        port.setName("http");
+        return port;
+    }
+
+    private V1PersistentVolumeClaimSpec getV1PersistentVolumeClaimSpec(@NotNull Volume vol) {
+        return new V1PersistentVolumeClaimSpecBuilder()
+                .withAccessModes("ReadWriteOnce")
+                .withResources(new V1ResourceRequirementsBuilder()
+                        .withRequests(Map.of("storage", new Quantity(vol.getVolumeSize())))
+                        .build())
+                .withStorageClassName(environment.getStorageClass())
+                .build();
+    }
+
+    /**
+     * Stores a hash of the generated object in its annotations. The json keys are sorted before hashing so that the
+     * fingerprint does not depend on map iteration order.
+     *
+     * @param obj the generated object
+     * @param <T> Any Kubernetes Object
+     * @return the same object
+     */
+    private <T extends KubernetesObject> T withFingerprint(@NotNull T obj) {
+        var tree = json.getGson().toJsonTree(obj);
+        var meta = obj.getMetadata();
+        var annotations = new HashMap<String, String>();
+        if (meta.getAnnotations() != null) {
+            annotations.putAll(meta.getAnnotations());
+        }
+        annotations.put(FINGERPRINT, hash(sortKeys(tree).toString()));
+        meta.setAnnotations(annotations);
+        return obj;
+    }
+
+    private JsonElement sortKeys(@NotNull JsonElement element) {
+        if (element.isJsonObject()) {
+            var sorted = new JsonObject();
+            element.getAsJsonObject().entrySet()
+                    .stream()
+                    .sorted(Map.Entry.comparingByKey())
+                    .forEach(entry -> sorted.add(entry.getKey(), sortKeys(entry.getValue())));
+            return sorted;
+        }
+
+        if (element.isJsonArray()) {
+            var sorted = new JsonArray();
+            element.getAsJsonArray().forEach(it -> sorted.add(sortKeys(it)));
+            return sorted;
+        }
+
+        return element;
+    }
+
+    @NotNull
+    String getPVCName(Volume volume, @NotNull AutoCD autoCD) {
+        var str = getNamespaceString() + "-" + getName() + "-" + autoCD.getIdentifierRegistryImagePath() + "-" + autoCD.getVolumes().indexOf(volume) + "-claim";
+        return hash(str).substring(0, 20);
+    }
+
+    @NotNull
+    private String getVolumeName(Volume volume, @NotNull AutoCD autoCD) {
+        return getPVCName(volume, autoCD);
+    }
+
+    private List<V1PersistentVolumeClaim> getPersistentVolumeClaims(@NotNull AutoCD autoCD) {
+        return autoCD.getVolumes().stream().map(volume -> {
+            var pvc = new V1PersistentVolumeClaim();
+            pvc.setKind("PersistentVolumeClaim");
+            var meta = getNamespacedMeta();
+            meta.setName(getPVCName(volume, autoCD));
+            meta.setLabels(withOwnerLabel(Map.of(), autoCD));
+            pvc.setMetadata(meta);
+            V1PersistentVolumeClaimSpec spec = getV1PersistentVolumeClaimSpec(volume);
+
+            pvc.setSpec(spec);
+
+            return withFingerprint(pvc);
+        }).collect(Collectors.toList());
+    }
+
+    @NotNull
+    private NetworkingV1beta1Ingress getIngress(@NotNull AutoCD autoCD) {
+        var ingress = new NetworkingV1beta1Ingress();
+        ingress.setKind("Ingress");
+        ingress.setApiVersion(getApiVersionNetworkingV1Beta1());
+        var meta = getNamespacedMeta();
+        meta.setName(Util.hash(getNamespaceString() + "-" + getName() + "-ingress" + autoCD.getIdentifierRegistryImagePath()).substring(0, 20));
+        meta.setLabels(withOwnerLabel(Map.of(), autoCD));
+
+        var spec = new NetworkingV1beta1IngressSpecBuilder()
+                .withRules(new NetworkingV1beta1IngressRuleBuilder()
+                        .withHost(autoCD.getSubdomain())
+                        .withHttp(new NetworkingV1beta1HTTPIngressRuleValueBuilder()
+                                .withPaths(new NetworkingV1beta1HTTPIngressPathBuilder().withPath("/")
+                                        .withBackend(new NetworkingV1beta1IngressBackendBuilder()
+                                                .withServiceName(getServiceName(autoCD))
+                                                .withServicePort(new IntOrString(autoCD.getServicePort()))
+                                                .build())
+                                        .build())
+                                .build())
+                        .build())
+                .build();
+
+        ingress.setSpec(spec);
+        ingress.setMetadata(meta);
+
+        return withFingerprint(ingress);
+    }
+
+    private String getCleanServiceNameLabel(AutoCD autoCD) {
+        var unclean = getServiceNameLabel(autoCD);
+        var clean = unclean.replaceAll("/", "-").replaceAll(":", "");
+        if (clean.startsWith("-")) {
+            clean = clean.substring(1);
+        }
+
+        return clean;
+    }
+
+    private String getServiceNameLabel(AutoCD autoCD) {
+        if (autoCD.getServiceName() != null) {
+            return autoCD.getServiceName();
+        }
+
+        if (autoCD.getRegistryImagePath() != null) {
+            return autoCD.getRegistryImagePath().replaceAll("registry\\.worldiety\\.net", "");
+        }
+
+        return environment.getProjectName();
+    }
+
+    @NotNull
+    private String getServiceName(@NotNull AutoCD autoCD) {
+        if (autoCD.getServiceName() != null) {
+            return autoCD.getServiceName();
+        }
+
+        return "service-" + Util.hash(getNamespaceString() + "-" + getName() + "-service").substring(0, 20);
+    }
+
+    @NotNull
+    private V1Service getService(@NotNull AutoCD autoCD) {
+        var service = new V1Service();
+        service.setKind("Service");
+        service.setApiVersion(getApiVersionV1());
+        var meta = getNamespacedMeta();
+        meta.setName(getServiceName(autoCD));
+        meta.setLabels(withOwnerLabel(Map.of(), autoCD));
+        var spec = new V1ServiceSpec();
+        spec.setSelector(Map.of("k8s-app", getK8sApp(autoCD)));
+        var port = new V1ServicePort();
+        port.setName("web");
+        port.setPort(autoCD.getServicePort());
+        port.setTargetPort(new IntOrString(autoCD.getContainerPort()));
+        spec.setPorts(List.of(port));
+
+        service.setSpec(spec);
+        service.setMetadata(meta);
+
+        return withFingerprint(service);
+    }
+
+    @NotNull
+    private V1Deployment getDeployment(@NotNull AutoCD autoCD) {
+        var meta = getNamespacedMeta();
+        var projName = environment.getProjectName();
+        meta.setName(Util.hash(getNamespaceString() + autoCD.getIdentifierRegistryImagePath() + projName));
+        var labels = Map.of("k8s-app", getK8sApp(autoCD));
+        meta.setLabels(withOwnerLabel(labels, autoCD));
+
+        var spec = new V1DeploymentSpec();
+        spec.setReplicas(autoCD.getReplicas());
+        var select = new V1LabelSelector();
+        select.setMatchLabels(labels);
+        spec.setSelector(select);
+
+        var template = new V1PodTemplateSpec();
+        spec.setTemplate(template);
+        var templateMeta = new V1ObjectMeta();
+        template.setMetadata(templateMeta);
+
+        templateMeta.setLabels(Map.of(
+                "k8s-app", getK8sApp(autoCD),
+                "name", getName(),
+                "serviceName", getCleanServiceNameLabel(autoCD)));
+        setImageIdAnnotation(templateMeta, autoCD);
+        template.setMetadata(templateMeta);
+
+        var podSpec = new V1PodSpec();
+        template.setSpec(podSpec);
+
+        podSpec.setTerminationGracePeriodSeconds(autoCD.getTerminationGracePeriod());
+
+        if (!autoCD.getVolumes().isEmpty()) {
+            podSpec.setVolumes(autoCD.getVolumes().stream().map(volume -> {
+                var vol = new V1Volume();
+                vol.setName(getPVCName(volume, autoCD));
+                var source = new V1PersistentVolumeClaimVolumeSource();
+                source.setClaimName(getPVCName(volume, autoCD));
+                vol.setPersistentVolumeClaim(source);
+                return vol;
+            }).collect(Collectors.toList()));
+        }
+
+        V1ContainerBuilder containerBuilder = getV1ContainerBuilder(autoCD);
+
+        var neededInitContainer = new ArrayList<V1Container>();
+        if (!autoCD.getVolumes().isEmpty()) {
+            var volumes = autoCD.getVolumes().stream().map(volume -> {
+                var vol = new V1VolumeMount();
+                vol.setName(getPVCName(volume, autoCD));
+                vol.setMountPath(volume.getVolumeMount());
+
+                if (volume.getFolderPermission() != null) {
+                    neededInitContainer.add(getVolumePermissionConditioner(volume.getFolderPermission(), vol));
+                }
+
+                return vol;
+            }).collect(Collectors.toList());
+
+            if (!neededInitContainer.isEmpty()) {
+                podSpec.setInitContainers(neededInitContainer);
+            }
+
+            containerBuilder = containerBuilder.withVolumeMounts(volumes);
+        }
+
+        var container = containerBuilder.build();
+
+        podSpec.setContainers(List.of(container));
+
+        if (environment.needsSecret()) {
+            var secret = new V1LocalObjectReference();
+            secret.setName("gitlab-bot");
+            podSpec.setImagePullSecrets(List.of(secret));
+        }
+
+        var dep = new V1Deployment();
+        dep.setMetadata(meta);
+        dep.setSpec(spec);
+        dep.setKind("Deployment");
+        dep.setApiVersion(getApiVersionAppsV1());
+        return withFingerprint(dep);
+    }
+
+    /**
+     * The tag of a built image stays the same between builds, so the id of the image is added to the pod template. This
+     * changes the fingerprint and triggers a rollout whenever a new image was pushed.
+     *
+     * @param templateMeta metadata of the pod template
+     * @param autoCD       configuration
+     */
+    private void setImageIdAnnotation(@NotNull V1ObjectMeta templateMeta, @NotNull AutoCD autoCD) {
+        if (autoCD.getImageId() != null) {
+            templateMeta.setAnnotations(Map.of(IMAGE_ID, autoCD.getImageId()));
+        }
+    }
+
+    private V1ContainerBuilder getV1ContainerBuilder(@NotNull AutoCD autoCD) {
+        V1ContainerPort port = getV1ContainerPort(autoCD);
+
+        List<V1EnvVar> variables = new ArrayList<>();
+        if (autoCD.getEnvironmentVariables() != null) {
+            var type = autoCD.getEnvironmentVariables().get(rawBuildType);
+            if (type != null) {
+                variables = type.entrySet()
+                        .stream()
+                        .map(entry -> new V1EnvVarBuilder().withName(entry.getKey()).withValue(entry.getValue()).build())
+                        .collect(Collectors.toList());
+            }
+        }
+
+        return new V1ContainerBuilder()
+                .withImage(autoCD.getRegistryImagePath())
+                .withName(getName() + "-c")
+                .withPorts(port)
+                .withEnv(variables)
+                .withArgs(autoCD.getArgs())
+                .withImagePullPolicy("Always");
+    }
+
+    /**
+     * Adds the label used to find all objects belonging to a configuration. It is not part of any selector, since
+     * selectors of existing deployments can't be changed.
+     *
+     * @param labels other labels of the object
+     * @param autoCD configuration
+     * @return the labels including the owner label
+     */
+    @NotNull
+    private Map<String, String> withOwnerLabel(@NotNull Map<String, String> labels, @NotNull AutoCD autoCD) {
+        var result = new HashMap<>(labels);
+        result.put(OWNER, getK8sApp(autoCD));
+        return result;
+    }
+
+    @NotNull
+    private String getK8sApp(@NotNull AutoCD autoCD) {
+        return Util.hash(getNamespaceString() + "-" + getName() + "-" + Util.hash(autoCD.getIdentifierRegistryImagePath())).substring(0, 20) + hyphenedBuildType;
+    }
+
+    /**
+     * This method returns an init container that may be required to set the read/write/execute flags (as numbers) on
+     * a mount. This may be required for redis or mysql for example because those containers run as USER and the volumes
+     * only have read/write/execute as ROOT. This is needed because the DigitalOcean Spec doesn't implement setting these
+     * via configuration as per the docs: https://www.digitalocean.com/docs/kubernetes/how-to/add-volumes/#setting-permissions-on-volumes
+     *
+     * @param perm Unix Permissions
+     * @param vol  the volumeMount to condition
+     * @return the initContainer used to condition the Volume
+     */
+    private V1Container getVolumePermissionConditioner(String perm, @NotNull V1VolumeMount vol) {
+        return new V1ContainerBuilder()
+                .withImage("busybox")
+                .withName("busybox" + "-c")
+                .withCommand("/bin/chmod", "-R", perm, "/data")
+                .withVolumeMounts(new V1VolumeMountBuilder()
+                        .withName(vol.getName())
+                        .withMountPath("/data")
+                        .build()
+                ).build();
+    }
+
+    @NotNull
+    @Contract(pure = true)
+    private String getApiVersionNetworkingV1Beta1() {
+        return "networking.k8s.io/v1beta1";
+    }
+
+    @NotNull
+    @Contract(pure = true)
+    private String getApiVersionAppsV1() {
+        return "apps/v1";
+    }
+
+    @NotNull
+    @Contract(pure = true)
+    private String getApiVersionV1() {
+        return "v1";
+    }
+
+    @NotNull
+    private String getName() {
+        if (isLocal(environment)) {
+            return "local-default-name";
+        }
+
+        return environment.getProjectName() + hyphenedBuildType;
+    }
+
+    @NotNull
+    private V1ObjectMeta getNamespacedMeta() {
+        var metadata = new V1ObjectMeta();
+        metadata.setNamespace(getNamespaceString());
+        return metadata;
+    }
+
+    @NotNull
+    private String getNamespaceString() {
+        var nameSpaceName = "local-default";
+
+        if (!isLocal(environment)) {
+            nameSpaceName = environment.getProjectNamespace();
+            nameSpaceName = nameSpaceName.replaceAll("/", "-");
+        }
+
+        return nameSpaceName + hyphenedBuildType;
+    }
+
+    @NotNull
+    private V1Namespace getNamespace() {
+        var ns = new V1Namespace();
+        var metadata = new V1ObjectMeta();
+        metadata.setName(getNamespaceString());
+
+        ns.setMetadata(metadata);
+        return ns;
+    }
+}
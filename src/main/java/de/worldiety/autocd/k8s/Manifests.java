@@ -0,0 +1,116 @@
+package de.worldiety.autocd.k8s;
+
+import io.kubernetes.client.common.KubernetesObject;
+import io.kubernetes.client.openapi.models.NetworkingV1beta1Ingress;
+import io.kubernetes.client.openapi.models.V1Deployment;
+import io.kubernetes.client.openapi.models.V1Namespace;
+import io.kubernetes.client.openapi.models.V1PersistentVolumeClaim;
+import io.kubernetes.client.openapi.models.V1Service;
+import io.kubernetes.client.openapi.models.V1StatefulSet;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * All objects rendered for one configuration by the {@link ManifestRenderer}. Both workloads are always rendered, since
+ * switching between a deployment and a statefulset requires the old one to be found by name and removed.
+ * The objects are what gets fingerprinted, planned and applied, so they must not be modified after rendering. Changes
+ * that only apply to a single deployment, like binding a claim to a retained volume, are made on copies.
+ */
+public class Manifests {
+    private final String owner;
+    private final boolean stateful;
+    private final boolean publiclyAccessible;
+    private final V1Namespace namespace;
+    private final V1Deployment deployment;
+    private final V1StatefulSet statefulSet;
+    private final V1Service service;
+    private final NetworkingV1beta1Ingress ingress;
+    private final List<V1PersistentVolumeClaim> claims;
+
+    Manifests(String owner, boolean stateful, boolean publiclyAccessible, V1Namespace namespace, V1Deployment deployment,
+              V1StatefulSet statefulSet, V1Service service, NetworkingV1beta1Ingress ingress,
+              List<V1PersistentVolumeClaim> claims) {
+        this.owner = owner;
+        this.stateful = stateful;
+        this.publiclyAccessible = publiclyAccessible;
+        this.namespace = namespace;
+        this.deployment = deployment;
+        this.statefulSet = statefulSet;
+        this.service = service;
+        this.ingress = ingress;
+        this.claims = List.copyOf(claims);
+    }
+
+    /**
+     * @return value of the owner label carried by all objects
+     */
+    public String getOwner() {
+        return owner;
+    }
+
+    public boolean isStateful() {
+        return stateful;
+    }
+
+    public boolean isPubliclyAccessible() {
+        return publiclyAccessible;
+    }
+
+    public V1Namespace getNamespace() {
+        return namespace;
+    }
+
+    public String getNamespaceName() {
+        return namespace.getMetadata().getName();
+    }
+
+    public V1Deployment getDeployment() {
+        return deployment;
+    }
+
+    public V1StatefulSet getStatefulSet() {
+        return statefulSet;
+    }
+
+    public V1Service getService() {
+        return service;
+    }
+
+    public NetworkingV1beta1Ingress getIngress() {
+        return ingress;
+    }
+
+    public List<V1PersistentVolumeClaim> getClaims() {
+        return claims;
+    }
+
+    /**
+     * The image pull secret is not part of the manifests, it only contains the registry credentials.
+     *
+     * @return every object that is deployed for the configuration, keyed by a name that is unique within it
+     */
+    @NotNull
+    public Map<String, KubernetesObject> getObjects() {
+        var objects = new LinkedHashMap<String, KubernetesObject>();
+        objects.put("namespace", namespace);
+
+        if (stateful) {
+            objects.put("statefulset", statefulSet);
+        } else {
+            objects.put("deployment", deployment);
+            claims.forEach(claim -> objects.put("claim-" + claim.getMetadata().getName(), claim));
+        }
+
+        objects.put("service", service);
+
+        if (publiclyAccessible) {
+            objects.put("ingress", ingress);
+        }
+
+        return Collections.unmodifiableMap(objects);
+    }
+}
@@ -0,0 +1,109 @@
+package de.worldiety.autocd.k8s;
+
+import io.kubernetes.client.openapi.ApiException;
+import io.kubernetes.client.openapi.apis.CoreV1Api;
+import io.kubernetes.client.openapi.models.V1PersistentVolume;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Index of all persistent volumes that are bound to a claim, keyed by the namespace and name of that claim. The volumes
+ * are listed once per run, page by page, so protecting and unprotecting volumes for every deployed image does not list
+ * the whole cluster again.
+ * <p>
+ * It also remembers which claims have been protected during this run, so images deployed concurrently in the same
+ * namespace don't unprotect each other's volumes.
+ */
+class PersistentVolumeIndex {
+    private static final int PAGE_SIZE = 500;
+    private final CoreV1Api api;
+    private final Set<String> protectedClaims = new HashSet<>();
+    private Map<String, List<V1PersistentVolume>> volumesByClaim;
+
+    PersistentVolumeIndex(CoreV1Api api) {
+        this.api = api;
+    }
+
+    /**
+     * @param namespace namespace of the claim
+     * @param claimName name of the claim
+     * @return all volumes that reference the claim
+     * @throws ApiException if the volumes could not be listed
+     */
+    synchronized List<V1PersistentVolume> getByClaim(String namespace, String claimName) throws ApiException {
+        return getVolumesByClaim().getOrDefault(getKey(namespace, claimName), List.of());
+    }
+
+    /**
+     * @param namespace namespace of the claims
+     * @return all volumes referencing a claim in the namespace, keyed by the claim name
+     * @throws ApiException if the volumes could not be listed
+     */
+    synchronized Map<String, List<V1PersistentVolume>> getByNamespace(String namespace) throws ApiException {
+        var prefix = getKey(namespace, "");
+        var result = new HashMap<String, List<V1PersistentVolume>>();
+        getVolumesByClaim().forEach((key, volumes) -> {
+            if (key.startsWith(prefix)) {
+                result.put(key.substring(prefix.length()), List.copyOf(volumes));
+            }
+        });
+
+        return result;
+    }
+
+    /**
+     * Replaces the indexed version of a volume after it has been patched.
+     *
+     * @param volume the patched volume
+     */
+    synchronized void update(V1PersistentVolume volume) {
+        if (volumesByClaim == null || volume == null) {
+            return;
+        }
+
+        volumesByClaim.values().forEach(volumes -> volumes.replaceAll(it ->
+                it.getMetadata().getName().equals(volume.getMetadata().getName()) ? volume : it));
+    }
+
+    synchronized void markProtected(String namespace, String claimName) {
+        protectedClaims.add(getKey(namespace, claimName));
+    }
+
+    synchronized boolean isProtected(String namespace, String claimName) {
+        return protectedClaims.contains(getKey(namespace, claimName));
+    }
+
+    @NotNull
+    private Map<String, List<V1PersistentVolume>> getVolumesByClaim() throws ApiException {
+        if (volumesByClaim != null) {
+            return volumesByClaim;
+        }
+
+        var index = new HashMap<String, List<V1PersistentVolume>>();
+        String continueToken = null;
+        do {
+            var page = api.listPersistentVolume(null, null, continueToken, null, null, PAGE_SIZE, null, null, null);
+            page.getItems().forEach(pv -> {
+                if (pv.getSpec() != null && pv.getSpec().getClaimRef() != null) {
+                    var claimRef = pv.getSpec().getClaimRef();
+                    index.computeIfAbsent(getKey(claimRef.getNamespace(), claimRef.getName()), it -> new ArrayList<>()).add(pv);
+                }
+            });
+            continueToken = page.getMetadata() == null ? null : page.getMetadata().getContinue();
+        } while (continueToken != null && !continueToken.isEmpty());
+
+        volumesByClaim = index;
+        return volumesByClaim;
+    }
+
+    @NotNull
+    private String getKey(String namespace, String claimName) {
+        return namespace + "/" + claimName;
+    }
+}
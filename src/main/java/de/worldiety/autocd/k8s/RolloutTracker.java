@@ -0,0 +1,276 @@
+package de.worldiety.autocd.k8s;
+
+import com.google.gson.reflect.TypeToken;
+import io.kubernetes.client.openapi.ApiException;
+import io.kubernetes.client.openapi.models.V1Deployment;
+import io.kubernetes.client.openapi.models.V1Event;
+import io.kubernetes.client.openapi.models.V1Pod;
+import io.kubernetes.client.openapi.models.V1PodCondition;
+import io.kubernetes.client.openapi.models.V1StatefulSet;
+import io.kubernetes.client.util.Watch;
+import okhttp3.Call;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Watches a Deployment or StatefulSet until all of its replicas are updated and ready, and reports how long the pods of
+ * the rollout spent in each phase (scheduling, image pull, container start, readiness).
+ */
+class RolloutTracker {
+    private static final Logger log = LoggerFactory.getLogger(RolloutTracker.class);
+    //Has to stay below the read timeout of the http client, the watch is reopened until the deadline is reached
+    private static final int WATCH_TIMEOUT_SECONDS = 25;
+    private static final long MIN_RETRY_DELAY_MS = 500;
+    private static final long MAX_RETRY_DELAY_MS = 10000;
+    //The watch can't succeed without a change of the credentials or the object, waiting for the timeout is pointless
+    private static final Set<Integer> UNRECOVERABLE_CODES = Set.of(401, 403, 404);
+    private final KubeApi kubeApi;
+    private final long timeoutMillis;
+
+    RolloutTracker(KubeApi kubeApi, long timeoutSeconds) {
+        this.kubeApi = kubeApi;
+        this.timeoutMillis = timeoutSeconds * 1000;
+    }
+
+    /**
+     * @param namespace   namespace of the deployment
+     * @param name        name of the deployment
+     * @param podSelector label selector matching the pods of the deployment
+     * @return true if the rollout finished before the timeout
+     */
+    boolean awaitDeployment(String namespace, String name, String podSelector) {
+        var apps = kubeApi.getAppsV1Api();
+        return await(namespace, podSelector, "deployment " + name,
+                () -> apps.listNamespacedDeploymentCall(namespace, null, null, null, getFieldSelector(name), null, null, null, WATCH_TIMEOUT_SECONDS, true, null),
+                new TypeToken<Watch.Response<V1Deployment>>() {
+                }.getType(),
+                (Predicate<V1Deployment>) this::isComplete);
+    }
+
+    /**
+     * @param namespace   namespace of the statefulset
+     * @param name        name of the statefulset
+     * @param podSelector label selector matching the pods of the statefulset
+     * @return true if the rollout finished before the timeout
+     */
+    boolean awaitStatefulSet(String namespace, String name, String podSelector) {
+        var apps = kubeApi.getAppsV1Api();
+        return await(namespace, podSelector, "statefulset " + name,
+                () -> apps.listNamespacedStatefulSetCall(namespace, null, null, null, getFieldSelector(name), null, null, null, WATCH_TIMEOUT_SECONDS, true, null),
+                new TypeToken<Watch.Response<V1StatefulSet>>() {
+                }.getType(),
+                (Predicate<V1StatefulSet>) this::isComplete);
+    }
+
+    private <T> boolean await(String namespace, String podSelector, String name, WatchCall watchCall, Type type, Predicate<T> isComplete) {
+        var start = DateTime.now();
+        var deadline = start.getMillis() + timeoutMillis;
+        log.info("Waiting for rollout of " + name);
+
+        var retryDelay = MIN_RETRY_DELAY_MS;
+        while (System.currentTimeMillis() < deadline) {
+            try (Watch<T> watch = Watch.createWatch(kubeApi.getClient(), watchCall.build(), type)) {
+                for (var event : watch) {
+                    if ("ERROR".equals(event.type)) {
+                        var code = event.status == null ? null : event.status.getCode();
+                        if (code != null && UNRECOVERABLE_CODES.contains(code)) {
+                            log.error("Could not watch " + name + ", giving up: " + code + " " + event.status.getMessage());
+                            return false;
+                        }
+
+                        log.warn("Watch for " + name + " returned an error, reopening in " + retryDelay + " ms: " + code);
+                        break;
+                    }
+
+                    retryDelay = MIN_RETRY_DELAY_MS;
+                    if (event.object != null && isComplete.test(event.object)) {
+                        log.info("Rollout of " + name + " finished after " + (System.currentTimeMillis() - start.getMillis()) + " ms");
+                        reportPods(namespace, podSelector, start);
+                        return true;
+                    }
+
+                    if (System.currentTimeMillis() >= deadline) {
+                        break;
+                    }
+                }
+            } catch (ApiException e) {
+                if (UNRECOVERABLE_CODES.contains(e.getCode())) {
+                    log.error("Could not watch " + name + ", giving up: " + e.getCode() + " " + e.getResponseBody(), e);
+                    return false;
+                }
+
+                log.warn("Watch for " + name + " failed with " + e.getCode() + ", reopening in " + retryDelay + " ms", e);
+            } catch (IOException | RuntimeException e) {
+                log.warn("Watch for " + name + " failed, reopening in " + retryDelay + " ms", e);
+            }
+
+            // also after a watch that ended normally, one that is closed right away must not be reopened in a tight loop
+            try {
+                Thread.sleep(Math.max(0, Math.min(retryDelay, deadline - System.currentTimeMillis())));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+
+            retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY_MS);
+        }
+
+        log.error("Rollout of " + name + " did not finish within " + timeoutMillis + " ms");
+        reportPods(namespace, podSelector, start);
+        return false;
+    }
+
+    private boolean isComplete(@NotNull V1Deployment deployment) {
+        var status = deployment.getStatus();
+        if (status == null || deployment.getSpec() == null) {
+            return false;
+        }
+
+        var replicas = getReplicas(deployment.getSpec().getReplicas());
+        return isObserved(deployment.getMetadata().getGeneration(), status.getObservedGeneration())
+                && replicas == count(status.getUpdatedReplicas())
+                && replicas == count(status.getReadyReplicas())
+                && replicas == count(status.getReplicas());
+    }
+
+    private boolean isComplete(@NotNull V1StatefulSet set) {
+        var status = set.getStatus();
+        if (status == null || set.getSpec() == null) {
+            return false;
+        }
+
+        var replicas = getReplicas(set.getSpec().getReplicas());
+        return isObserved(set.getMetadata().getGeneration(), status.getObservedGeneration())
+                && replicas == count(status.getUpdatedReplicas())
+                && replicas == count(status.getReadyReplicas())
+                && Objects.equals(status.getCurrentRevision(), status.getUpdateRevision());
+    }
+
+    /**
+     * @param replicas replicas of the spec
+     * @return the replicas, kubernetes defaults a missing value to 1
+     */
+    private int getReplicas(@Nullable Integer replicas) {
+        return replicas == null ? 1 : replicas;
+    }
+
+    /**
+     * @param replicas a replica count of the status
+     * @return the count, kubernetes omits counts that are 0
+     */
+    private int count(@Nullable Integer replicas) {
+        return replicas == null ? 0 : replicas;
+    }
+
+    private boolean isObserved(Long generation, Long observedGeneration) {
+        return generation == null || (observedGeneration != null && observedGeneration >= generation);
+    }
+
+    /**
+     * Logs the phase latencies of all pods that were created during the rollout. Image pull times are taken from the
+     * "Pulling" and "Pulled" events of the pod, all other times from its status.
+     *
+     * @param namespace   the namespace
+     * @param podSelector label selector of the pods
+     * @param since       start of the rollout
+     */
+    private void reportPods(String namespace, String podSelector, DateTime since) {
+        var core = kubeApi.getCoreV1Api();
+        try {
+            var pods = core.listNamespacedPod(namespace, null, null, null, null, podSelector, null, null, null, null).getItems();
+            for (var pod : pods) {
+                var created = pod.getMetadata().getCreationTimestamp();
+                // creation timestamps only have second precision
+                if (created == null || created.isBefore(since.minusSeconds(1))) {
+                    continue;
+                }
+
+                var podName = pod.getMetadata().getName();
+                var events = core.listNamespacedEvent(namespace, null, null, null, "involvedObject.name=" + podName, null, null, null, null, null).getItems();
+                var scheduled = getConditionTime(pod, "PodScheduled");
+                var pulling = getEventTime(events, "Pulling");
+                var pulled = getEventTime(events, "Pulled");
+                var started = getStartedTime(pod);
+                var ready = getConditionTime(pod, "Ready");
+
+                log.info("Pod {}: scheduled {}, image pull {}, container start {}, ready {}, total {}",
+                        podName,
+                        between(created, scheduled),
+                        between(pulling, pulled),
+                        between(pulled != null ? pulled : scheduled, started),
+                        between(started, ready),
+                        between(created, ready));
+            }
+        } catch (ApiException e) {
+            log.warn("Could not report pod latencies", e);
+        }
+    }
+
+    @Nullable
+    private DateTime getConditionTime(@NotNull V1Pod pod, String type) {
+        if (pod.getStatus() == null || pod.getStatus().getConditions() == null) {
+            return null;
+        }
+
+        return pod.getStatus().getConditions()
+                .stream()
+                .filter(it -> type.equals(it.getType()) && "True".equals(it.getStatus()))
+                .map(V1PodCondition::getLastTransitionTime)
+                .findFirst()
+                .orElse(null);
+    }
+
+    @Nullable
+    private DateTime getEventTime(@NotNull List<V1Event> events, String reason) {
+        return events.stream()
+                .filter(it -> reason.equals(it.getReason()))
+                .map(it -> it.getLastTimestamp() != null ? it.getLastTimestamp() : it.getFirstTimestamp())
+                .filter(Objects::nonNull)
+                .max(DateTime::compareTo)
+                .orElse(null);
+    }
+
+    @Nullable
+    private DateTime getStartedTime(@NotNull V1Pod pod) {
+        if (pod.getStatus() == null || pod.getStatus().getContainerStatuses() == null) {
+            return null;
+        }
+
+        return pod.getStatus().getContainerStatuses()
+                .stream()
+                .filter(it -> it.getState() != null && it.getState().getRunning() != null)
+                .map(it -> it.getState().getRunning().getStartedAt())
+                .filter(Objects::nonNull)
+                .max(DateTime::compareTo)
+                .orElse(null);
+    }
+
+    @NotNull
+    private String between(@Nullable DateTime from, @Nullable DateTime to) {
+        if (from == null || to == null) {
+            return "n/a";
+        }
+
+        return Math.max(0, to.getMillis() - from.getMillis()) + " ms";
+    }
+
+    @NotNull
+    private String getFieldSelector(String name) {
+        return "metadata.name=" + name;
+    }
+
+    @FunctionalInterface
+    private interface WatchCall {
+        Call build() throws ApiException;
+    }
+}
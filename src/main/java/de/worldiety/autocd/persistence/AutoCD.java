@@ -21,6 +21,8 @@ public class AutoCD {
     private List<String> args = new ArrayList<>();
     private String serviceName = null;
     private String subdomain;
+    //Id of the image built during this run, not part of the configuration file
+    private transient String imageId;
 
     public AutoCD(int containerPort, int servicePort, int replicas, boolean publiclyAccessible, long terminationGracePeriod, String dockerImagePath, String registryImagePath, Map<String, String> subdomains, boolean shouldHost, List<Volume> volumes, Map<String, Map<String, String>> environmentVariables, List<AutoCD> otherImages, List<String> args, String serviceName, String subdomain) {
         this.containerPort = containerPort;
@@ -159,6 +161,14 @@ public class AutoCD {
         this.dockerImagePath = dockerImagePath;
     }
 
+    public String getImageId() {
+        return imageId;
+    }
+
+    public void setImageId(String imageId) {
+        this.imageId = imageId;
+    }
+
     public String getServiceName() {
         return serviceName;
     }
@@ -0,0 +1,85 @@
+package de.worldiety.autocd.util;
+
+import de.worldiety.autocd.docker.Dockerfile;
+import de.worldiety.autocd.persistence.AutoCD;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.nio.file.Path;
+
+/**
+ * An image that AutoCD builds and pushes, together with the configuration that deploys it.
+ */
+public class BuildTarget {
+    private final AutoCD autoCD;
+    private final Dockerfile dockerfile;
+    private final String imageName;
+
+    /**
+     * @param autoCD     configuration, gets the path of the pushed image
+     * @param dockerfile the Dockerfile and its build context
+     * @param imageName  name of an additional image of the project, null for the main image
+     */
+    public BuildTarget(AutoCD autoCD, Dockerfile dockerfile, @Nullable String imageName) {
+        this.autoCD = autoCD;
+        this.dockerfile = dockerfile;
+        this.imageName = imageName;
+    }
+
+    /**
+     * Creates the target for an image in otherImages that is built from the directory in its dockerImagePath.
+     *
+     * @param autoCD configuration of the image
+     * @return the target
+     */
+    @NotNull
+    public static BuildTarget fromDockerImagePath(@NotNull AutoCD autoCD) {
+        return fromDockerImagePath(autoCD, Path.of(""), null);
+    }
+
+    /**
+     * Creates the target for an image in otherImages that is built from the directory in its dockerImagePath.
+     *
+     * @param autoCD          configuration of the image
+     * @param baseDirectory   directory a relative dockerImagePath is resolved against
+     * @param parentImageName image name of the service the image belongs to, null for the main image
+     * @return the target, its image name is prefixed with the name of the parent image
+     */
+    @NotNull
+    public static BuildTarget fromDockerImagePath(@NotNull AutoCD autoCD, @NotNull Path baseDirectory, @Nullable String parentImageName) {
+        var path = baseDirectory.resolve(autoCD.getDockerImagePath()).toAbsolutePath().toFile();
+        var directory = path.isDirectory() ? path : path.getParentFile();
+        var dockerfile = path.isDirectory() ? new File(path, "Dockerfile") : path;
+        var name = toImageName(directory.getName());
+
+        return new BuildTarget(autoCD, Dockerfile.of(dockerfile), parentImageName == null ? name : parentImageName + "/" + name);
+    }
+
+    /**
+     * @param directoryName name of the directory an image is built from
+     * @return the name as it can be used in the path of an image
+     */
+    @NotNull
+    public static String toImageName(@NotNull String directoryName) {
+        return directoryName.toLowerCase().replaceAll("[^a-z0-9._-]", "-");
+    }
+
+    public AutoCD getAutoCD() {
+        return autoCD;
+    }
+
+    public Dockerfile getDockerfile() {
+        return dockerfile;
+    }
+
+    @Nullable
+    public String getImageName() {
+        return imageName;
+    }
+
+    @NotNull
+    public String getDisplayName() {
+        return imageName == null ? "main image" : imageName;
+    }
+}
@@ -0,0 +1,97 @@
+package de.worldiety.autocd.util;
+
+import de.worldiety.autocd.persistence.AutoCD;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * Runs an action for every node of an autoCD configuration tree, where the otherImages of a configuration are its
+ * dependencies. Independent siblings are processed concurrently on a bounded thread pool.
+ */
+public class DependencyExecutor implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(DependencyExecutor.class);
+    private final ExecutorService executor;
+
+    public DependencyExecutor(int parallelism) {
+        this.executor = Executors.newFixedThreadPool(Math.max(1, parallelism));
+    }
+
+    /**
+     * Applies the action to all dependencies before the configuration depending on them, used for deployments.
+     *
+     * @param root   configuration
+     * @param action action to apply to every node
+     */
+    public void runDependenciesFirst(@NotNull AutoCD root, Consumer<AutoCD> action) {
+        await(dependenciesFirst(root, action));
+    }
+
+    /**
+     * Applies the action to every configuration before its dependencies, used for removals.
+     *
+     * @param root   configuration
+     * @param action action to apply to every node
+     */
+    public void runDependentsFirst(@NotNull AutoCD root, Consumer<AutoCD> action) {
+        await(dependentsFirst(root, action, CompletableFuture.completedFuture(null)));
+    }
+
+    private CompletableFuture<Void> dependenciesFirst(@NotNull AutoCD node, Consumer<AutoCD> action) {
+        var dependencies = node.getOtherImages()
+                .stream()
+                .map(it -> dependenciesFirst(it, action))
+                .toArray(CompletableFuture[]::new);
+
+        return CompletableFuture.allOf(dependencies).thenRunAsync(() -> timed(node, action), executor);
+    }
+
+    private CompletableFuture<Void> dependentsFirst(@NotNull AutoCD node, Consumer<AutoCD> action, @NotNull CompletableFuture<Void> parent) {
+        var self = parent.thenRunAsync(() -> timed(node, action), executor);
+        var all = new ArrayList<CompletableFuture<Void>>();
+        all.add(self);
+        node.getOtherImages().forEach(it -> all.add(dependentsFirst(it, action, self)));
+
+        return CompletableFuture.allOf(all.toArray(CompletableFuture[]::new));
+    }
+
+    private void timed(@NotNull AutoCD node, @NotNull Consumer<AutoCD> action) {
+        var start = System.currentTimeMillis();
+        action.accept(node);
+        log.info("Processed {} in {} ms", getNodeName(node), System.currentTimeMillis() - start);
+    }
+
+    private String getNodeName(@NotNull AutoCD node) {
+        if (node.getServiceName() != null) {
+            return node.getServiceName();
+        }
+
+        return node.getRegistryImagePath();
+    }
+
+    private void await(@NotNull CompletableFuture<Void> future) {
+        var start = System.currentTimeMillis();
+        try {
+            future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+
+            throw e;
+        }
+        log.info("Processed all images in {} ms", System.currentTimeMillis() - start);
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+}
@@ -2,18 +2,35 @@ package de.worldiety.autocd.util;
 
 import org.jetbrains.annotations.Contract;
 
+import java.util.List;
+
 public enum FileType {
-    JAVA("java", "openjdk-12-builder", "openjdk-12-prod", "RUN ./gradlew build\n"),
-    GO("go", "go-1.13-builder", "go-1.13-prod", "RUN go build -o app . \n"),
-    VUE("vue", "node-builder", "nginx-prod", "RUN npm run build\n"),
-    NUXT("vue", "nuxt-builder", "nuxt-prod", "RUN npm i && npm run build"),
-    EISEN("eisen", "node-builder", "nginx-prod", "RUN npm run build\n"),
+    JAVA("java", "openjdk-12-builder", "openjdk-12-prod", "RUN ./gradlew build\n", List.of(".gradle", "build", "out"),
+            List.of("gradlew", "gradle", "build.gradle", "build.gradle.kts", "settings.gradle", "settings.gradle.kts", "gradle.properties"),
+            "RUN ./gradlew --no-daemon dependencies\n", "/root/.gradle", "openjdk-12-appcds-prod"),
+    GO("go", "go-1.13-builder", "go-1.13-prod", "RUN go build -o app . \n", List.of(),
+            List.of("go.mod", "go.sum"), "RUN go mod download\n", "/go/pkg/mod"),
+    VUE("vue", "node-builder", "nginx-prod", "RUN npm run build\n", List.of("node_modules", "dist"),
+            List.of("package.json", "package-lock.json"), "RUN npm install\n", "/root/.npm"),
+    NUXT("vue", "nuxt-builder", "nuxt-prod", "RUN npm run build", List.of("node_modules", ".nuxt", "dist"),
+            List.of("package.json", "package-lock.json"), "RUN npm install\n", "/root/.npm"),
+    EISEN("eisen", "node-builder", "nginx-prod", "RUN npm run build\n", List.of("node_modules", "dist"),
+            List.of("package.json", "package-lock.json"), "RUN npm install\n", "/root/.npm"),
     OTHER("other");
 
     private final String name;
     private String defaultBuild;
     private String dockerConfig;
     private String finalDocker;
+    //Build outputs and caches that are recreated inside the builder image and don't need to be sent as build context
+    private List<String> dockerIgnore = List.of();
+    //Files that declare the dependencies, the first one is required to resolve them
+    private List<String> dependencyFiles = List.of();
+    private String installDependencies;
+    //Download cache of the package manager, mounted into the build steps when building with BuildKit
+    private String cacheDirectory;
+    //Variant of finalDocker that starts the application with a class data sharing archive created at build time
+    private String appCdsFinalDocker;
 
     @Contract(pure = true)
     FileType(String name) {
@@ -33,11 +50,22 @@ public enum FileType {
         this.finalDocker = finalDocker;
     }
 
-    FileType(String name, String dockerConfig, String finalDocker, String defaultBuild) {
+    FileType(String name, String dockerConfig, String finalDocker, String defaultBuild, List<String> dockerIgnore,
+             List<String> dependencyFiles, String installDependencies, String cacheDirectory) {
         this.name = name;
         this.dockerConfig = dockerConfig;
         this.finalDocker = finalDocker;
         this.defaultBuild = defaultBuild;
+        this.dockerIgnore = dockerIgnore;
+        this.dependencyFiles = dependencyFiles;
+        this.installDependencies = installDependencies;
+        this.cacheDirectory = cacheDirectory;
+    }
+
+    FileType(String name, String dockerConfig, String finalDocker, String defaultBuild, List<String> dockerIgnore,
+             List<String> dependencyFiles, String installDependencies, String cacheDirectory, String appCdsFinalDocker) {
+        this(name, dockerConfig, finalDocker, defaultBuild, dockerIgnore, dependencyFiles, installDependencies, cacheDirectory);
+        this.appCdsFinalDocker = appCdsFinalDocker;
     }
 
     public String getDefaultBuild() {
@@ -70,4 +98,29 @@ public enum FileType {
     public void setFinalDocker(String finalDocker) {
         this.finalDocker = finalDocker;
     }
+
+    @Contract(pure = true)
+    public List<String> getDockerIgnore() {
+        return dockerIgnore;
+    }
+
+    @Contract(pure = true)
+    public List<String> getDependencyFiles() {
+        return dependencyFiles;
+    }
+
+    @Contract(pure = true)
+    public String getInstallDependencies() {
+        return installDependencies;
+    }
+
+    @Contract(pure = true)
+    public String getCacheDirectory() {
+        return cacheDirectory;
+    }
+
+    @Contract(pure = true)
+    public String getAppCdsFinalDocker() {
+        return appCdsFinalDocker;
+    }
 }
@@ -0,0 +1,51 @@
+package de.worldiety.autocd.util;
+
+import de.worldiety.autocd.docker.DockerfileHandler;
+import de.worldiety.autocd.persistence.AutoCD;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.file.Path;
+
+/**
+ * A deployable unit of a repository: the whole repository, or one service of a monorepo with its own directory,
+ * configuration and image.
+ */
+public class Project {
+    private final AutoCD autoCD;
+    private final DockerfileHandler finder;
+    private final String imageName;
+
+    /**
+     * @param autoCD    configuration of the project
+     * @param finder    handler for the directory of the project
+     * @param imageName name of the image of a service, null for a repository with a single project
+     */
+    public Project(@NotNull AutoCD autoCD, @NotNull DockerfileHandler finder, @Nullable String imageName) {
+        this.autoCD = autoCD;
+        this.finder = finder;
+        this.imageName = imageName;
+    }
+
+    public AutoCD getAutoCD() {
+        return autoCD;
+    }
+
+    public DockerfileHandler getFinder() {
+        return finder;
+    }
+
+    @Nullable
+    public String getImageName() {
+        return imageName;
+    }
+
+    public Path getDirectory() {
+        return finder.getDirectory();
+    }
+
+    @NotNull
+    public String getDisplayName() {
+        return imageName == null ? "project" : imageName;
+    }
+}
@@ -2,15 +2,21 @@ package de.worldiety.autocd.util;
 
 import de.worldiety.autocd.docker.Docker;
 import de.worldiety.autocd.env.Environment;
-import de.worldiety.autocd.persistence.AutoCD;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import java.io.File;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Util {
+    private static final Logger log = LoggerFactory.getLogger(Util.class);
     public static final String CLOUDIETY_DOMAIN = ".cloudiety.de";
 
     public static String buildSubdomain(Environment environment, String buildType, String hash) {
@@ -35,10 +41,49 @@ public class Util {
     }
 
 
-    public static void pushDockerAndSetPath(Environment environment, File dockerfile, AutoCD autoCD, String buildType) {
-        var dockerClient = new Docker(environment);
-        var tag = dockerClient.buildAndPushImageFromFile(dockerfile, buildType);
-        autoCD.setRegistryImagePath(tag);
+    private static void pushDockerAndSetPath(Docker dockerClient, BuildTarget target, String buildType) {
+        var tag = dockerClient.buildAndPushImage(target.getDockerfile(), target.getImageName(), buildType);
+        target.getAutoCD().setRegistryImagePath(tag);
+        target.getAutoCD().setImageId(dockerClient.getImageId(tag));
+    }
+
+    /**
+     * Builds and pushes the images of all targets, independent images are built concurrently on a bounded thread pool.
+     *
+     * @param environment  the CI environment
+     * @param dockerClient the client shared by all builds
+     * @param targets      the images to build
+     * @param buildType    the build type
+     */
+    public static void pushDockerAndSetPaths(Environment environment, Docker dockerClient, List<BuildTarget> targets, String buildType) {
+        if (targets.isEmpty()) {
+            return;
+        }
+
+        var start = System.currentTimeMillis();
+        var built = new AtomicInteger();
+        var executor = Executors.newFixedThreadPool(Math.max(1, Math.min(targets.size(), environment.getBuildParallelism())));
+        try {
+            CompletableFuture.allOf(targets.stream()
+                    .map(target -> CompletableFuture.runAsync(() -> {
+                        var imageStart = System.currentTimeMillis();
+                        log.info("Building {}", target.getDisplayName());
+                        pushDockerAndSetPath(dockerClient, target, buildType);
+                        log.info("Built {} in {} ms ({}/{})", target.getDisplayName(),
+                                System.currentTimeMillis() - imageStart, built.incrementAndGet(), targets.size());
+                    }, executor))
+                    .toArray(CompletableFuture[]::new)).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+
+            throw e;
+        } finally {
+            executor.shutdown();
+        }
+
+        log.info("Built {} images in {} ms", targets.size(), System.currentTimeMillis() - start);
     }
 
     private static String bytesToHex(byte[] hash) {
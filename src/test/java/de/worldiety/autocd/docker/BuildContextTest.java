@@ -0,0 +1,108 @@
+package de.worldiety.autocd.docker;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BuildContextTest {
+    private static final byte[] DOCKERFILE = "FROM scratch\n".getBytes(StandardCharsets.UTF_8);
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+    private Path root;
+
+    @Before
+    public void createContext() throws IOException {
+        root = folder.getRoot().toPath();
+        Files.createDirectories(root.resolve("src"));
+        Files.writeString(root.resolve("src/a.txt"), "a");
+        Files.createDirectories(root.resolve("static"));
+        Files.createSymbolicLink(root.resolve("link"), Path.of("src/a.txt"));
+        Files.createDirectories(root.resolve("node_modules/left-pad"));
+        Files.writeString(root.resolve("node_modules/left-pad/index.js"), "");
+        Files.writeString(root.resolve(BuildContext.DOCKER_IGNORE), "node_modules\n");
+    }
+
+    @Test
+    public void tarContainsEmptyDirectoriesAndSymbolicLinks() throws IOException {
+        var entries = readTar();
+
+        assertTrue(entries.get("static/").isDirectory());
+        assertTrue(entries.get("src/").isDirectory());
+        assertTrue(entries.get("src/a.txt").isFile());
+        assertTrue(entries.get("link").isSymbolicLink());
+        assertEquals("src/a.txt", entries.get("link").getLinkName());
+        assertTrue(entries.containsKey(BuildContext.DOCKER_IGNORE));
+        assertTrue(entries.containsKey("Dockerfile"));
+        assertFalse(entries.keySet().stream().anyMatch(it -> it.startsWith("node_modules")));
+    }
+
+    @Test
+    public void tarContainsTheGivenDockerfile() throws IOException {
+        var out = new ByteArrayOutputStream();
+        BuildContext.of(root).writeTar(out, "Dockerfile", DOCKERFILE);
+
+        try (var tar = new TarArchiveInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            TarArchiveEntry entry;
+            while ((entry = tar.getNextTarEntry()) != null) {
+                if (entry.getName().equals("Dockerfile")) {
+                    assertArrayEquals(DOCKERFILE, tar.readAllBytes());
+                    return;
+                }
+            }
+        }
+
+        throw new AssertionError("No Dockerfile in the tar");
+    }
+
+    @Test
+    public void hashCoversDirectoriesLinksAndModes() throws IOException {
+        var hash = BuildContext.of(root).hash(DOCKERFILE, "dev");
+        assertEquals(hash, BuildContext.of(root).hash(DOCKERFILE, "dev"));
+
+        Files.createDirectories(root.resolve("static/images"));
+        var withDirectory = BuildContext.of(root).hash(DOCKERFILE, "dev");
+        assertNotEquals(hash, withDirectory);
+
+        Files.delete(root.resolve("link"));
+        Files.createSymbolicLink(root.resolve("link"), Path.of("static"));
+        var withRetargetedLink = BuildContext.of(root).hash(DOCKERFILE, "dev");
+        assertNotEquals(withDirectory, withRetargetedLink);
+
+        assertTrue(root.resolve("src/a.txt").toFile().setExecutable(true));
+        assertNotEquals(withRetargetedLink, BuildContext.of(root).hash(DOCKERFILE, "dev"));
+    }
+
+    private Map<String, TarArchiveEntry> readTar() throws IOException {
+        var out = new ByteArrayOutputStream();
+        BuildContext.of(root).writeTar(out, "Dockerfile", DOCKERFILE);
+
+        var entries = new LinkedHashMap<String, TarArchiveEntry>();
+        try (var tar = new TarArchiveInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            TarArchiveEntry entry;
+            while ((entry = tar.getNextTarEntry()) != null) {
+                entries.put(entry.getName(), entry);
+            }
+        }
+
+        return entries;
+    }
+}
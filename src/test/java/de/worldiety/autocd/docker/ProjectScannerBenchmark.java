@@ -0,0 +1,120 @@
+package de.worldiety.autocd.docker;
+
+import de.worldiety.autocd.util.FileType;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the file type detection against a full recursive listing of the project, like the handler did before the
+ * scanner, on a synthetic tree of 500k files: a node_modules folder, git objects, a build output and a few sources.
+ * Creating the tree takes a while, so the benchmark only runs with {@code ./gradlew test -Dautocd.benchmark=true}.
+ */
+public class ProjectScannerBenchmark {
+    private static final Logger log = LoggerFactory.getLogger(ProjectScannerBenchmark.class);
+    private static final int PACKAGES = 400;
+    private static final int FILES_PER_PACKAGE = 1000;
+    private static final int GIT_OBJECT_DIRECTORIES = 256;
+    private static final int FILES_PER_GIT_OBJECT_DIRECTORY = 200;
+    private static final int DIST_FILES = 48000;
+    private static final int SOURCES = 50;
+    private static final int RUNS = 3;
+
+    @ClassRule
+    public static final TemporaryFolder folder = new TemporaryFolder();
+    private static Path root;
+
+    @BeforeClass
+    public static void createTree() throws IOException {
+        Assume.assumeTrue("Set -Dautocd.benchmark=true to run", Boolean.getBoolean("autocd.benchmark"));
+
+        var start = System.currentTimeMillis();
+        root = folder.getRoot().toPath();
+        Files.writeString(root.resolve("package.json"), "{\"name\": \"benchmark\"}");
+        for (var i = 0; i < PACKAGES; i++) {
+            createFiles(root.resolve("node_modules/package-" + i + "/lib"), FILES_PER_PACKAGE, ".js");
+        }
+        for (var i = 0; i < GIT_OBJECT_DIRECTORIES; i++) {
+            createFiles(root.resolve(".git/objects/" + String.format("%02x", i)), FILES_PER_GIT_OBJECT_DIRECTORY, "");
+        }
+        createFiles(root.resolve("dist/assets"), DIST_FILES, ".js");
+        createFiles(root.resolve("src/components"), SOURCES, ".vue");
+
+        log.info("Created {} files in {} ms", getTreeSize(), System.currentTimeMillis() - start);
+    }
+
+    @Test
+    public void detectsTheFileTypeWithoutEnteringPrunedDirectories() throws IOException {
+        var fullListing = Long.MAX_VALUE;
+        var scan = Long.MAX_VALUE;
+        var detection = Long.MAX_VALUE;
+        long scannedFiles = 0;
+
+        for (var run = 0; run < RUNS; run++) {
+            var start = System.nanoTime();
+            var files = listRecursively(root.toFile(), new ArrayList<>());
+            fullListing = Math.min(fullListing, System.nanoTime() - start);
+            assertEquals(getTreeSize(), files.size());
+
+            start = System.nanoTime();
+            var summary = new ProjectScanner(root, DockerfileHandler.getPrunedDirectories(), DockerfileHandler.MAX_SCAN_DEPTH).summarize(false);
+            scan = Math.min(scan, System.nanoTime() - start);
+            scannedFiles = summary.getFileCount();
+
+            start = System.nanoTime();
+            assertEquals(FileType.VUE, new DockerfileHandler(root.toString()).getFileType());
+            detection = Math.min(detection, System.nanoTime() - start);
+        }
+
+        log.info("Full listing: {} ms, pruned scan of {} files: {} ms, file type detection: {} ms",
+                fullListing / 1_000_000, scannedFiles, scan / 1_000_000, detection / 1_000_000);
+        assertEquals(SOURCES + 1, scannedFiles);
+        assertTrue("The pruned scan should be faster than the full listing", scan < fullListing);
+    }
+
+    private static void createFiles(Path directory, int count, String extension) throws IOException {
+        Files.createDirectories(directory);
+        for (var i = 0; i < count; i++) {
+            Files.createFile(directory.resolve("file-" + i + extension));
+        }
+    }
+
+    private static long getTreeSize() {
+        return 1 + (long) PACKAGES * FILES_PER_PACKAGE + (long) GIT_OBJECT_DIRECTORIES * FILES_PER_GIT_OBJECT_DIRECTORY
+                + DIST_FILES + SOURCES;
+    }
+
+    /**
+     * The listing the handler used before the scanner: every file of the project, kept in a list
+     */
+    private static List<File> listRecursively(File directory, List<File> files) {
+        var children = directory.listFiles();
+        if (children == null) {
+            return files;
+        }
+
+        for (var child : children) {
+            if (child.isDirectory()) {
+                listRecursively(child, files);
+            } else {
+                files.add(child);
+            }
+        }
+
+        return files;
+    }
+}